@@ -1,99 +1,253 @@
+import java.util.*;
+
 /** Class Alist.
  * This class forms the association list, ie, the mapping of symbols to corresponding
  * values when passed in the form of an argument. The variables/values pairs
  * reside only through the lifetime of the function and vanish once the function
- * disappears, being in spirit with LISP's functional programming paradigm. 
- * The variables/values pairs are stored as s-expression, in the following way:
- * ((var_one.val_one) (var_two.val_two) ..... (var_n.val_n))
- * Since the list itself has been implemented as an s-expression list, it's 
- * convenient to do search, deleting, adding etc recursively. Hence for every
- * operation n the A-list, a corresponding recursive helper function has been
- * provided, which is private in scope.
+ * disappears, being in spirit with LISP's functional programming paradigm.
+ * The bindings are kept on an array backed stack of frames, one frame per
+ * function call. When a function is defined its parameters are resolved to
+ * slot indices (see FrameLayout), so a call only copies the arguments into
+ * consecutive slots and a return simply drops the frame.
+ * A variable is looked up in the current frame first. Free variables are
+ * searched in the calling frames, most recent first, which preserves the
+ * dynamic scoping of the original list based implementation.
+ * Every Interpreter has an A-list of its own, which is used by one thread at
+ * a time. The A-list of an interpreter forked to evaluate an argument in
+ * parallel (see Parallel) starts with a copy of the frame of the running
+ * function and sees the frames below it through the arrays of the forking
+ * A-list, as they were when it forked. Those frames are not changed until
+ * the forked evaluation has been joined.
+ * The number of frames may be limited (see Limits): a call which would go
+ * deeper fails with a LimitExceededError. A forked A-list counts the frames
+ * it sees below its own against the limit.
  * @author: Pravar Mahajan
  */
 
 class AList{
-    private static SExp aList = SymbolTable.getSExpForAtom("NIL");
-    
-    private AList() {}
-    
-    static boolean contains(String symbol) {
-        return containsRecursive(aList, symbol);
-    }
-    
-    private static boolean containsRecursive(SExp node, String symbol) {
-        if(node.isNil())
-            return false;
-        else if(node.car().car().equalsSymbol(symbol))
-            return true;
-        else return containsRecursive(node.cdr(), symbol);
-    }
-
-    static SExp getValue(String symbol) {
-        SExp value = getValueRecursive(aList, symbol);
-        assert value!=null;
-        return value;
-    }
-    
-    private static SExp getValueRecursive(SExp node, String symbol) {
-        if(node.isNil())
-            return null;
-        SExp value = getValueRecursive(node.cdr(), symbol);
-        if(value != null)
-            return value;
-        else if(symbol.equals(node.car().car().getAtomAsString()))
-            return node.car().cdr(); 
-        else return null;
-    }
-    
-    @SuppressWarnings("empty-statement")
-    static void addPairs(SExp params, SExp args) throws EvaluationError {
-        SExp node;
-        if(aList.isNil()) {
-            aList = new SExp(new SExp(params.car(), args.car()), aList);
-            params = params.cdr();
+    private SExp[] slots = new SExp[64];
+    private FrameLayout[] frameLayouts = new FrameLayout[16];
+    private int[] frameBases = new int[16];
+    private int depth = 0; //Number of live frames
+    private int top = 0; //First free slot
+    private int maxDepth = 0; //Limit on the frames seen, 0 if there is none
+    private int frameLimit = Integer.MAX_VALUE; //Limit on the own frames
+
+    //Frames of the A-list this one was forked from, below the copied frame
+    private final AList outer;
+    private final SExp[] outerSlots;
+    private final FrameLayout[] outerLayouts;
+    private final int[] outerBases;
+    private final int outerDepth;
+
+    AList() {
+        outer = null;
+        outerSlots = null;
+        outerLayouts = null;
+        outerBases = null;
+        outerDepth = 0;
+    }
+
+    /**
+     * Creates the A-list of an evaluation forked from the given one.
+     */
+    AList(AList forking) {
+        outer = forking;
+        outerSlots = forking.slots;
+        outerLayouts = forking.frameLayouts;
+        outerBases = forking.frameBases;
+        maxDepth = forking.maxDepth;
+        if(forking.depth == 0) {
+            outerDepth = 0;
+            frameLimit = forking.frameLimit;
+            return;
+        }
+        outerDepth = forking.depth - 1;
+        frameLimit = forking.frameLimit - outerDepth;
+        addFrame(forking.frameLayouts[outerDepth], forking.slots,
+                forking.frameBases[outerDepth]);
+    }
+
+    /**
+     * @return an A-list holding copies of all the frames this one sees, for
+     * an evaluation which may outlive them
+     */
+    AList copy() {
+        AList copy = new AList();
+        copy.addFrames(this, slots, frameLayouts, frameBases, depth);
+        copy.maxDepth = maxDepth;
+        copy.frameLimit = frameLimit == Integer.MAX_VALUE ? frameLimit
+                : frameLimit + copy.depth - depth;
+        return copy;
+    }
+
+    //Adds copies of the frames the given A-list sees through its outer
+    //frames, followed by the given frames
+    private void addFrames(AList list, SExp[] fromSlots, FrameLayout[] layouts,
+                           int[] bases, int count) {
+        if(list.outer != null)
+            addFrames(list.outer, list.outerSlots, list.outerLayouts,
+                    list.outerBases, list.outerDepth);
+        for(int frame = 0; frame < count; frame++)
+            addFrame(layouts[frame], fromSlots, bases[frame]);
+    }
+
+    private void addFrame(FrameLayout layout, SExp[] values, int from) {
+        int size = layout.size();
+        ensureCapacity(size);
+        System.arraycopy(values, from, slots, top, size);
+        frameLayouts[depth] = layout;
+        frameBases[depth] = top;
+        depth++;
+        top += size;
+    }
+
+    /**
+     * Looks up the value bound to the symbol.
+     * @param symbol: symbolic atom
+     * @return the bound value, or null if the symbol is unbound
+     */
+    SExp getValue(SExp symbol) {
+        for(int frame = depth - 1; frame >= 0; frame--) {
+            int slot = frameLayouts[frame].slotOf(symbol);
+            if(slot >= 0)
+                return slots[frameBases[frame] + slot];
+        }
+        for(AList list = this; list != null && list.outerSlots != null;
+                list = list.outer) {
+            for(int frame = list.outerDepth - 1; frame >= 0; frame--) {
+                int slot = list.outerLayouts[frame].slotOf(symbol);
+                if(slot >= 0)
+                    return list.outerSlots[list.outerBases[frame] + slot];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param slot: slot index of a parameter of the current function
+     * @return the value bound to the parameter in the current frame
+     */
+    SExp getLocal(int slot) {
+        return slots[frameBases[depth - 1] + slot];
+    }
+
+    /**
+     * Creates a new frame binding the parameters to the arguments.
+     * @param layout: frame layout of the called function
+     * @param args: evaluated argument list
+     * @throws EvaluationError if the number of arguments does not match
+     */
+    void pushFrame(FrameLayout layout, SExp args) throws EvaluationError {
+        if(depth >= frameLimit)
+            throw tooDeep();
+        int size = layout.size();
+        ensureCapacity(size);
+        int base = top;
+        for(int i = 0; i < size; i++) {
+            if(args.isNil())
+                throw new EvaluationError("Too few arguments!");
+            slots[base + i] = args.car();
             args = args.cdr();
         }
-        for(node = aList; !node.cdr().isNil(); node=node.cdr());
-        addPairsRecursively(node, params, args);
+        if(!args.isNil())
+            throw new EvaluationError("Too many arguments!");
+        frameLayouts[depth] = layout;
+        frameBases[depth] = base;
+        depth++;
+        top = base + size;
     }
-    
-    private static void addPairsRecursively(SExp node, SExp params, SExp args)
+
+    /**
+     * Creates a new frame binding the parameters to arguments held in an
+     * array, as done by the VM.
+     * @param layout: frame layout of the called function
+     * @param values: array holding the arguments
+     * @param from: index of the first argument
+     * @param count: number of arguments
+     * @throws EvaluationError if the number of arguments does not match
+     */
+    void pushFrame(FrameLayout layout, SExp[] values, int from, int count)
             throws EvaluationError {
-        assert node.cdr().isNil();
-        if(params.isNil() && args.isNil())
-            return;
-        else if(params.isNil())
-            throw new EvaluationError("Too many arguments!");
-        else if(args.isNil())
+        int size = layout.size();
+        if(count < size)
             throw new EvaluationError("Too few arguments!");
-        node.setRight(new SExp(new SExp(params.car(), args.car()), node.cdr()));
-        addPairsRecursively(node.cdr(), params.cdr(), args.cdr());
-    }
-    
-    @SuppressWarnings("empty-statement")
-    static void destroy(SExp params) {
-        assert !aList.isNil() && !params.isNil();
-        while(!params.isNil()) {
-            boolean flag = destroyRecursively(aList, null, params.car());
-            assert flag;
-            params = params.cdr();
+        else if(count > size)
+            throw new EvaluationError("Too many arguments!");
+        if(depth >= frameLimit)
+            throw tooDeep();
+        addFrame(layout, values, from);
+    }
+
+    /**
+     * Limits the number of frames of this A-list, which is not forked, from
+     * now on.
+     * @param max: the largest number of frames, or 0 for no limit
+     */
+    void setMaxDepth(int max) {
+        assert outer == null;
+        maxDepth = max;
+        frameLimit = max == 0 ? Integer.MAX_VALUE : max;
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    private LimitExceededError tooDeep() {
+        return new LimitExceededError(Limits.Resource.DEPTH, "Depth limit of "
+                + maxDepth + " exceeded");
+    }
+
+    /**
+     * Drops the most recent frame.
+     */
+    void popFrame() {
+        assert depth > 0;
+        depth--;
+        int base = frameBases[depth];
+        Arrays.fill(slots, base, top, null);
+        frameLayouts[depth] = null;
+        top = base;
+    }
+
+    private void ensureCapacity(int size) {
+        if(top + size > slots.length)
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, top + size));
+        if(depth == frameLayouts.length) {
+            frameLayouts = Arrays.copyOf(frameLayouts, depth * 2);
+            frameBases = Arrays.copyOf(frameBases, depth * 2);
         }
     }
-    
-    private static boolean destroyRecursively(SExp node, SExp parent, SExp param) {
-        if(node.isNil()) return false;
-        boolean flag = destroyRecursively(node.cdr(), node, param);
-        if(flag) return flag;
-        else if(node.car().car().getAtomAsString().equals(param.getAtomAsString()))
-        {
-            if(parent == null)
-                aList = node.cdr();
-            else
-                parent.setRight(node.cdr());
-            return true;
+}
+
+/**
+ * Maps the parameters of a function to slot indices within its frame.
+ * The parameter symbols are interned, so they are compared by reference.
+ * If a parameter name repeats, the last occurrence wins, as it did when the
+ * bindings were searched from the tail of the A-list.
+ */
+class FrameLayout {
+    private final SExp[] params;
+
+    FrameLayout(SExp paramList) throws EvaluationError {
+        List<SExp> names = new ArrayList<>();
+        for(SExp node = paramList; !node.isNil(); node = node.cdr()) {
+            if(node.isAtom() || !node.car().isSymbolicAtom())
+                throw new EvaluationError("Parameters should be symbols");
+            names.add(node.car());
         }
-        else return false;
+        params = names.toArray(new SExp[0]);
+    }
+
+    int size() {
+        return params.length;
+    }
+
+    int slotOf(SExp symbol) {
+        for(int i = params.length - 1; i >= 0; i--)
+            if(params[i] == symbol)
+                return i;
+        return -1;
     }
-    
 }
@@ -0,0 +1,71 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the memory allocated by integer arithmetic, to show what the
+ * small integer cache of SymbolTable saves. The same additions of small
+ * integers are made once through SymbolTable.getSExpForAtom, as the
+ * primitives do, and once with a new SExp for every result, as they did
+ * before the cache. A counting loop in Lisp is then evaluated and the bytes
+ * allocated per step reported; running it again with the cache emptied,
+ * -Dlisp.intcache.low=0 -Dlisp.intcache.high=-1, shows the difference for
+ * whole programs. Allocation is read from the JVM's ThreadMXBean.
+ * Run with: java AllocationBenchmark [operations]
+ * @author: Pravar Mahajan
+ */
+public class AllocationBenchmark {
+
+    private static final String LIBRARY =
+            "(DEFUN COUNT (N ACC) (COND ((EQ N 0) ACC)"
+            + " (T (COUNT (MINUS N 1) (REMAINDER (PLUS ACC N) 1000)))))";
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        SExp[] operands = new SExp[1000];
+        for(int i = 0; i < operands.length; i++)
+            operands[i] = SymbolTable.getSExpForAtom(i);
+        SExp one = SymbolTable.getSExpForAtom(1);
+        SExp[] results = new SExp[1024]; //Keeps the results alive
+
+        for(int round = 0; round < 3; round++) { //The last round is reported
+            long cached = allocated();
+            long startTime = System.nanoTime();
+            for(int i = 0; i < operations; i++)
+                results[i & 1023] = SExp.plus(operands[i % 1000], one);
+            long cachedNanos = System.nanoTime() - startTime;
+            cached = allocated() - cached;
+
+            long fresh = allocated();
+            startTime = System.nanoTime();
+            for(int i = 0; i < operations; i++)
+                results[i & 1023] = new SExp(i % 1000 + 1);
+            long freshNanos = System.nanoTime() - startTime;
+            fresh = allocated() - fresh;
+            if(round == 2) {
+                report("cached integers", cached, cachedNanos, operations);
+                report("new integers", fresh, freshNanos, operations);
+            }
+        }
+
+        Interpreter interpreter = new Interpreter();
+        interpreter.evaluate(LIBRARY);
+        String work = "(COUNT " + operations / 10 + " 0)";
+        interpreter.evaluate(work); //Warm up
+        long before = allocated();
+        long startTime = System.nanoTime();
+        SExp result = interpreter.evaluate(work);
+        report("Lisp counting loop " + result.getDottedNotation(),
+                allocated() - before, System.nanoTime() - startTime,
+                operations / 10);
+    }
+
+    private static void report(String label, long bytes, long nanos, long count) {
+        System.out.printf("%s: %.1f bytes per step, %.0f MB/s allocated,"
+                + " %.1f ns per step%n", label, (double) bytes / count,
+                bytes / 1e6 / (nanos / 1e9), (double) nanos / count);
+    }
+
+    private static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class runs a script without interaction, for pipelines evaluating many
+ * expressions per job.
+ * Expressions are read one at a time with an SExpReader, from a script file or
+ * the standard input, and evaluated in order. Nothing is prompted for and the
+ * parsed expressions are not echoed; the result of each expression is printed
+ * on a line of its own, or only the result of the last expression when
+ * finalOnly is set (nothing if the last expression failed). Results are
+ * written through a 64 KB buffer on the standard output and error messages
+ * through one on the standard error, both flushed at the end of the run, so a
+ * run makes a few large writes instead of one per line.
+ * An expression which fails to parse or evaluate is reported with its number
+ * and the run continues with the next one. At the end the number of
+ * expressions, errors, the elapsed time and the expressions per second are
+ * written to the standard error, so the standard output holds only results.
+ * @author: Pravar Mahajan
+ */
+public class Batch {
+
+    //Exit status of a run
+    public static final int SUCCESS = 0;
+    public static final int FAILED = 1; //Some expression failed
+    public static final int INPUT_ERROR = 2; //The input could not be read
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private Batch() {}
+
+    /**
+     * Runs a script file, or the standard input if file is null, in an
+     * interpreter.
+     * @return the exit status
+     */
+    public static int run(Interpreter interpreter, String file, Printer printer,
+                          boolean finalOnly) {
+        PrintWriter output = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)),
+                BUFFER_SIZE));
+        PrintWriter errors = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.err)),
+                BUFFER_SIZE));
+        try(InputStream input = file == null ? System.in
+                : new FileInputStream(file)) {
+            return run(interpreter, new SExpReader(new InputStreamReader(input,
+                    StandardCharsets.UTF_8)), printer, finalOnly, output, errors);
+        }
+        catch(IOException err) {
+            errors.println("Cannot read " + (file == null ? "the input" : file)
+                    + ": " + err.getMessage());
+            return INPUT_ERROR;
+        }
+        finally {
+            output.flush();
+            errors.flush();
+        }
+    }
+
+    /**
+     * Evaluates every expression of the reader, printing the results to output
+     * and the error messages and final statistics to errors.
+     * @return the exit status
+     * @throws IOException if reading fails
+     */
+    static int run(Interpreter interpreter, SExpReader reader, Printer printer,
+                   boolean finalOnly, PrintWriter output, PrintWriter errors)
+            throws IOException {
+        long startTime = System.nanoTime();
+        int expressions = 0, failures = 0;
+        SExp last = null;
+        while(true) {
+            SExp result;
+            try {
+                SExp expression = reader.next();
+                if(expression == null)
+                    break;
+                expressions++;
+                result = interpreter.evaluate(expression);
+            }
+            catch(ParseError err) {
+                expressions++;
+                failures++;
+                errors.println("expression " + expressions + ": " + err.getMessage());
+                last = null;
+                continue;
+            }
+            catch(EvaluationError err) {
+                failures++;
+                errors.println("expression " + expressions + ": " + err.getMessage());
+                last = null;
+                continue;
+            }
+            catch(StackOverflowError err) {
+                failures++;
+                errors.println("expression " + expressions
+                        + ": Stack overflow, recursion is too deep");
+                last = null;
+                continue;
+            }
+            if(finalOnly)
+                last = result;
+            else
+                print(result, printer, output);
+        }
+        if(last != null)
+            print(last, printer, output);
+        long nanos = System.nanoTime() - startTime;
+        errors.println(String.format("%d expressions (%d errors) in %.1f ms,"
+                + " %.0f expressions/s", expressions, failures, nanos / 1e6,
+                expressions / (Math.max(nanos, 1) / 1e9)));
+        return failures == 0 ? SUCCESS : FAILED;
+    }
+
+    private static void print(SExp result, Printer printer, PrintWriter output)
+            throws IOException {
+        printer.print(result, output);
+        output.println();
+    }
+}
@@ -0,0 +1,221 @@
+import java.util.*;
+
+/**
+ * This class is the registry of primitive functions.
+ * It maps the interned symbol of each primitive to a Builtin entry holding
+ * the implementation and the number of arguments it accepts, so applying a
+ * primitive is a single identity lookup followed by an arity check.
+ * The standard primitives CAR, CDR, CONS, ATOM, EQ, NULL, INT, PLUS, MINUS,
+ * TIMES, QUOTIENT, REMAINDER, LESS and GREATER are registered when the class
+ * is loaded, together with FUTURE, TOUCH and PMAP (see Futures), which need
+ * the Interpreter they are called in. Further primitives can be added with
+ * register.
+ * The table is shared by every Interpreter. It is read without locking;
+ * register replaces it with an updated copy, so a primitive registered while
+ * other threads evaluate is seen by them from their next lookup on.
+ * @author: Pravar Mahajan
+ */
+public class Builtins {
+
+    /** Arity of a primitive accepting any number of arguments. */
+    public static final int VARIADIC = -1;
+
+    private static volatile Map<SExp, Builtin> builtins = new IdentityHashMap<>();
+
+    private Builtins() {}
+
+    static {
+        registerUnary("CAR", arg -> {
+            checkNonAtom(arg);
+            return arg.car();
+        });
+        registerUnary("CDR", arg -> {
+            checkNonAtom(arg);
+            return arg.cdr();
+        });
+        registerBinary("CONS", (op1, op2, interpreter) -> interpreter.cons(op1, op2));
+        registerUnary("ATOM", arg -> SExp.boolToSExp(arg.isAtom()));
+        registerUnary("NULL", arg -> SExp.boolToSExp(arg.isNil()));
+        registerBinary("EQ", (op1, op2, interpreter) -> op1.equals(op2));
+        registerUnary("INT", arg -> SExp.boolToSExp(arg.isIntegerAtom()));
+        registerBinary("PLUS", (op1, op2, interpreter) -> {
+            checkIntegerAtoms(op1, op2);
+            return SExp.plus(op1, op2);
+        });
+        registerBinary("MINUS", (op1, op2, interpreter) -> {
+            checkIntegerAtoms(op1, op2);
+            return SExp.minus(op1, op2);
+        });
+        registerBinary("TIMES", (op1, op2, interpreter) -> {
+            checkIntegerAtoms(op1, op2);
+            return SExp.times(op1, op2);
+        });
+        registerBinary("QUOTIENT", (op1, op2, interpreter) -> {
+            checkIntegerAtoms(op1, op2);
+            return SExp.quotient(op1, op2);
+        });
+        registerBinary("REMAINDER", (op1, op2, interpreter) -> {
+            checkIntegerAtoms(op1, op2);
+            return SExp.remainder(op1, op2);
+        });
+        registerBinary("LESS", (op1, op2, interpreter) -> {
+            checkIntegerAtoms(op1, op2);
+            return SExp.less(op1, op2);
+        });
+        registerBinary("GREATER", (op1, op2, interpreter) -> {
+            checkIntegerAtoms(op1, op2);
+            return SExp.greater(op1, op2);
+        });
+        registerSession("FUTURE", VARIADIC, Futures::future);
+        registerSession("TOUCH", 1, Futures::touch);
+        registerSession("PMAP", 2, Futures::pmap);
+    }
+
+    /**
+     * Registers a primitive, replacing any primitive of the same name.
+     * Primitives take precedence over functions defined with DEFUN.
+     * @param name: name of the primitive
+     * @param arity: number of arguments, or VARIADIC
+     * @param primitive: the implementation
+     */
+    public static void register(String name, int arity, Primitive primitive) {
+        SExp symbol = SymbolTable.getSExpForAtom(name);
+        add(new Builtin(symbol, arity, primitive, null, null, null));
+    }
+
+    //Primitives which use the interpreter they are called in
+    private static void registerSession(String name, int arity,
+                                        Builtin.Session session) {
+        SExp symbol = SymbolTable.getSExpForAtom(name);
+        add(new Builtin(symbol, arity, null, session, null, null));
+    }
+
+    private static synchronized void add(Builtin builtin) {
+        Map<SExp, Builtin> updated = new IdentityHashMap<>(builtins);
+        updated.put(builtin.getName(), builtin);
+        builtins = updated;
+    }
+
+    //The standard primitives take their arguments directly, so compiled
+    //code can call them without building an argument list
+    private static void registerUnary(String name, Builtin.Unary unary) {
+        SExp symbol = SymbolTable.getSExpForAtom(name);
+        add(new Builtin(symbol, 1, args -> unary.apply(args.car()), null, unary,
+                null));
+    }
+
+    private static void registerBinary(String name, Builtin.Binary binary) {
+        SExp symbol = SymbolTable.getSExpForAtom(name);
+        add(new Builtin(symbol, 2, null, null, null, binary));
+    }
+
+    /**
+     * @param symbol: symbolic atom
+     * @return the primitive registered under the symbol, or null if none
+     */
+    static Builtin get(SExp symbol) {
+        return builtins.get(symbol);
+    }
+
+    static void checkNonAtom(SExp sExp) throws EvaluationError {
+        if(sExp.isAtom())
+            throw new EvaluationError(sExp.getAtomAsString() + " is an atom");
+    }
+
+    static void checkIntegerAtoms(SExp op1, SExp op2) throws EvaluationError {
+        if(!op1.isIntegerAtom() || !op2.isIntegerAtom())
+            throw new EvaluationError("Operands must be integers!");
+    }
+}
+
+/**
+ * A registered primitive together with its name and arity. The standard one
+ * and two argument primitives also provide a form taking the arguments
+ * directly. A primitive is applied in an Interpreter, which the Session and
+ * the two argument forms receive; CONS counts its cells there for the cell
+ * limit (see Limits).
+ */
+class Builtin {
+    interface Unary {
+        SExp apply(SExp arg) throws EvaluationError;
+    }
+
+    interface Binary {
+        SExp apply(SExp op1, SExp op2, Interpreter interpreter)
+                throws EvaluationError;
+    }
+
+    interface Session {
+        SExp apply(SExp args, Interpreter interpreter) throws EvaluationError;
+    }
+
+    private final SExp name;
+    private final int arity;
+    private final Primitive primitive;
+    private final Session session;
+    private final Unary unary;
+    private final Binary binary;
+
+    //Applied through session, or binary, or primitive, the first not null
+    Builtin(SExp name, int arity, Primitive primitive, Session session,
+            Unary unary, Binary binary) {
+        this.name = name;
+        this.arity = arity;
+        this.primitive = primitive;
+        this.session = session;
+        this.unary = unary;
+        this.binary = binary;
+    }
+
+    SExp getName() {
+        return name;
+    }
+
+    int getArity() {
+        return arity;
+    }
+
+    //True for primitives of the Session form, which may call user functions
+    boolean usesInterpreter() {
+        return session != null;
+    }
+
+    //Null unless the primitive takes exactly one argument directly
+    Unary getUnary() {
+        return unary;
+    }
+
+    //Null unless the primitive takes exactly two arguments directly
+    Binary getBinary() {
+        return binary;
+    }
+
+    SExp apply(SExp args, Interpreter interpreter) throws EvaluationError {
+        if(arity != Builtins.VARIADIC)
+            checkValidNumArgs(args);
+        return applyChecked(args, interpreter);
+    }
+
+    //For callers which have already checked the number of arguments
+    SExp applyChecked(SExp args, Interpreter interpreter) throws EvaluationError {
+        if(session != null)
+            return session.apply(args, interpreter);
+        if(binary != null)
+            return binary.apply(args.car(), args.cdr().car(), interpreter);
+        return primitive.apply(args);
+    }
+
+    private void checkValidNumArgs(SExp args) throws EvaluationError {
+        int count = 0;
+        while(!args.isNil() && count <= arity) {
+            args = args.cdr();
+            count++;
+        }
+        if(count < arity)
+            throw new EvaluationError("Too few arguments to "
+                    + name.getAtomAsString());
+        else if(count > arity)
+            throw new EvaluationError("Too many arguments to "
+                    + name.getAtomAsString());
+    }
+}
@@ -0,0 +1,245 @@
+import java.util.*;
+
+/**
+ * This class compiles s-expressions into bytecode for the VM.
+ * With the VM engine, the body of every function is compiled when it is
+ * defined with DEFUN, and every top level expression is compiled before it is
+ * run. The instruction set is listed in class Bytecode. As with the Compiler,
+ * parameters are resolved to frame slots and primitives are bound at compile
+ * time, and malformed expressions compile to a FAIL instruction which raises
+ * the error eval would raise, at the point eval would raise it.
+ * Code in tail position ends with RETURN. A call to a user function there is
+ * a TAIL_CALL, which the VM runs without growing its call stack; the RETURN
+ * after it returns the result when the function is invoked instead.
+ * @author: Pravar Mahajan
+ */
+class BytecodeCompiler {
+
+    private final FrameLayout layout;
+    private int[] code = new int[32];
+    private int length = 0;
+    private final List<Object> pool = new ArrayList<>();
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    private BytecodeCompiler(FrameLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Compiles the body of a function.
+     * @param body: function body
+     * @param layout: frame layout of the function parameters
+     */
+    static Bytecode compile(SExp body, FrameLayout layout) {
+        BytecodeCompiler compiler = new BytecodeCompiler(layout);
+        compiler.compile(body, true);
+        return compiler.finish();
+    }
+
+    /**
+     * Compiles a top level expression. Every variable in it is looked up
+     * dynamically, as there is no enclosing function.
+     */
+    static Bytecode compileTopLevel(SExp expression) throws EvaluationError {
+        return compile(expression, new FrameLayout(SymbolTable.NIL));
+    }
+
+    private Bytecode finish() {
+        return new Bytecode(Arrays.copyOf(code, length), pool.toArray(), maxStack);
+    }
+
+    private void compile(SExp sExp, boolean tail) {
+        if(sExp.isAtom()) {
+            if(sExp.isIntegerAtom() || sExp.isTrue() || sExp.isNil())
+                emitPush(Bytecode.CONST, constant(sExp));
+            else if(layout.slotOf(sExp) >= 0)
+                emitPush(Bytecode.LOCAL, layout.slotOf(sExp));
+            else
+                emitPush(Bytecode.DYNAMIC, constant(sExp));
+            returnIfTail(tail);
+            return;
+        }
+        SExp car = sExp.car();
+        SExp cdr = sExp.cdr();
+        if(!car.isSymbolicAtom()) {
+            fail(car.getDottedNotation() + " is not a function", tail);
+        }
+        else if(car == SymbolTable.QUOTE) {
+            if(!cdr.isNil() && cdr.cdr().isNil()) {
+                emitPush(Bytecode.CONST, constant(cdr.car()));
+                returnIfTail(tail);
+            }
+            else if(cdr.isNil())
+                fail("Too few params for QUOTE", tail);
+            else fail("Too many params for QUOTE", tail);
+        }
+        else if(car == SymbolTable.COND) {
+            if(cdr.isNil())
+                fail("Too few params for COND", tail);
+            else
+                compileCond(cdr, tail);
+        }
+        else if(car == SymbolTable.DEFUN) {
+            emitPush(Bytecode.DEFUN, constant(cdr));
+            returnIfTail(tail);
+        }
+        else if(cdr.isAtom() && !cdr.isNil()) {
+            fail("Error evaluating " + sExp.getDottedNotation(), tail);
+        }
+        else {
+            compileCall(car, cdr, tail);
+        }
+    }
+
+    private void compileCond(SExp clauses, boolean tail) {
+        List<Integer> exits = new ArrayList<>();
+        int depth = stackDepth;
+        for(; !clauses.isAtom(); clauses = clauses.cdr()) {
+            SExp clause = clauses.car();
+            if(clause.isAtom()) {
+                fail(clause.getAtomAsString() + " should be a list", true);
+                break;
+            }
+            if(clause.car() == SymbolTable.QUOTE) {
+                fail("QUOTE has no value", true);
+                break;
+            }
+            compile(clause.car(), false);
+            emit(Bytecode.JUMP_IF_NIL);
+            int next = emit(0);
+            stackDepth--;
+            if(clause.cdr().isAtom()) {
+                fail("COND branch has no value", true);
+            }
+            else {
+                compile(clause.cdr().car(), tail);
+                if(!tail) {
+                    emit(Bytecode.JUMP);
+                    exits.add(emit(0));
+                }
+            }
+            //The next clause starts with the stack as it was before this one
+            stackDepth = depth;
+            code[next] = length;
+        }
+        fail("No cases matched!", true);
+        for(int exit : exits)
+            code[exit] = length;
+        stackDepth = depth + (tail ? 0 : 1);
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    private void compileCall(SExp func, SExp args, boolean tail) {
+        int argc = 0;
+        SExp node;
+        for(node = args; !node.isAtom(); node = node.cdr()) {
+            compile(node.car(), false);
+            argc++;
+        }
+        if(!node.isNil()) { //Fails once the arguments before it are evaluated
+            stackDepth -= argc;
+            fail("Error evaluating " + node.getDottedNotation(), tail);
+            return;
+        }
+        Builtin builtin = Builtins.get(func);
+        if(builtin != null && builtin.getUnary() != null && argc == 1) {
+            emit(Bytecode.UNARY);
+            emit(constant(builtin.getUnary()));
+        }
+        else if(builtin != null && builtin.getBinary() != null && argc == 2) {
+            emit(Bytecode.BINARY);
+            emit(constant(builtin.getBinary()));
+        }
+        else if(builtin != null) {
+            emit(Bytecode.PRIMITIVE);
+            emit(constant(builtin));
+            emit(argc);
+        }
+        else {
+            emit(tail ? Bytecode.TAIL_CALL : Bytecode.CALL);
+            emit(constant(func));
+            emit(argc);
+        }
+        stackDepth -= argc - 1;
+        maxStack = Math.max(maxStack, stackDepth);
+        returnIfTail(tail);
+    }
+
+    private void returnIfTail(boolean tail) {
+        if(tail) {
+            emit(Bytecode.RETURN);
+            stackDepth--;
+        }
+    }
+
+    //Emits code which raises an error. In a non tail position it is counted
+    //as pushing a value, so the stack depth stays consistent for the code
+    //that follows.
+    private void fail(String message, boolean tail) {
+        emit(Bytecode.FAIL);
+        emit(constant(message));
+        if(!tail) {
+            stackDepth++;
+            maxStack = Math.max(maxStack, stackDepth);
+        }
+    }
+
+    private void emitPush(int opcode, int operand) {
+        emit(opcode);
+        emit(operand);
+        stackDepth++;
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    private int emit(int word) {
+        if(length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length] = word;
+        return length++;
+    }
+
+    private int constant(Object value) {
+        for(int i = 0; i < pool.size(); i++)
+            if(pool.get(i) == value)
+                return i;
+        pool.add(value);
+        return pool.size() - 1;
+    }
+}
+
+/**
+ * Compiled bytecode: the instructions, the constant pool they refer to and
+ * the number of stack entries the code needs at most.
+ * Instructions are stored as ints, each opcode followed by its operands:
+ *   CONST index        push pool[index]
+ *   LOCAL slot         push the parameter in the given slot of the frame
+ *   DYNAMIC index      push the value of the free variable pool[index]
+ *   JUMP_IF_NIL target pop a value, jump if it is NIL
+ *   JUMP target        jump unconditionally
+ *   UNARY index        apply the Builtin.Unary pool[index] to the top value
+ *   BINARY index       apply the Builtin.Binary pool[index] to the top two
+ *   PRIMITIVE index n  apply the Builtin pool[index] to the top n values
+ *   CALL index n       call the user function named pool[index] with the top
+ *                      n values as arguments and push the result
+ *   TAIL_CALL index n  the same, replacing the running function; always
+ *                      followed by RETURN
+ *   DEFUN index        define the function described by pool[index]
+ *   RETURN             return the top value
+ *   FAIL index         raise an EvaluationError with message pool[index]
+ */
+class Bytecode {
+    static final int CONST = 0, LOCAL = 1, DYNAMIC = 2, JUMP_IF_NIL = 3,
+            JUMP = 4, UNARY = 5, BINARY = 6, PRIMITIVE = 7, CALL = 8,
+            TAIL_CALL = 9, DEFUN = 10, RETURN = 11, FAIL = 12;
+
+    final int[] code;
+    final Object[] pool;
+    final int maxStack;
+
+    Bytecode(int[] code, Object[] pool, int maxStack) {
+        this.code = code;
+        this.pool = pool;
+        this.maxStack = maxStack;
+    }
+}
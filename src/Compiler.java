@@ -0,0 +1,357 @@
+import java.util.*;
+
+/**
+ * This class compiles the body of a function into a tree of executable nodes.
+ * Compilation happens once, when the function is defined with DEFUN, and the
+ * result is kept in its FunctionDef. The work eval repeats on every visit of
+ * an expression is done up front: special forms are recognised, parameters
+ * are resolved to slots of the frame, primitives are bound to their Builtin
+ * entry and the number of arguments of a primitive call is checked.
+ * Malformed expressions compile to nodes which raise the same EvaluationError
+ * as eval when they are executed, so a compiled function behaves exactly like
+ * the interpreted one, including the order in which errors are detected.
+ * Calls to user functions in tail position compile to TailCall nodes. They
+ * evaluate the arguments and hand the call back to Evaluator.invoke, which
+ * runs it in a loop, so compiled tail recursion runs in constant Java stack.
+ * In the parallel mode the calls whose arguments may be evaluated at the same
+ * time (see Parallel) are compiled to nodes which fork them.
+ * @author: Pravar Mahajan
+ */
+class Compiler {
+
+    //Returned by a TailCall node in place of a value. The call to make is
+    //left in pendingFunction and pendingArgs of the Interpreter.
+    static final SExp TAIL_CALL = new SExp("#TAIL-CALL");
+
+    private Compiler() {}
+
+    /**
+     * Compiles the body of a function.
+     * @param body: function body
+     * @param layout: frame layout of the function parameters
+     * @return root node of the compiled body
+     */
+    static Node compile(SExp body, FrameLayout layout) {
+        return compile(body, layout, true);
+    }
+
+    private static Node compile(SExp sExp, FrameLayout layout, boolean tail) {
+        if(sExp.isAtom()) {
+            if(sExp.isIntegerAtom() || sExp.isTrue() || sExp.isNil())
+                return new Constant(sExp);
+            int slot = layout.slotOf(sExp);
+            if(slot >= 0)
+                return new LocalVariable(slot);
+            return new DynamicVariable(sExp);
+        }
+        SExp car = sExp.car();
+        SExp cdr = sExp.cdr();
+        if(!car.isSymbolicAtom())
+            return new Failure(car.getDottedNotation() + " is not a function");
+        if(car == SymbolTable.QUOTE) {
+            if(!cdr.isNil() && cdr.cdr().isNil())
+                return new Constant(cdr.car());
+            else if(cdr.isNil())
+                return new Failure("Too few params for QUOTE");
+            else return new Failure("Too many params for QUOTE");
+        }
+        if(car == SymbolTable.COND) {
+            if(cdr.isNil())
+                return new Failure("Too few params for COND");
+            return compileCond(cdr, layout, tail);
+        }
+        if(car == SymbolTable.DEFUN)
+            return new Defun(cdr);
+        if(cdr.isAtom() && !cdr.isNil())
+            return new Failure("Error evaluating " + sExp.getDottedNotation());
+
+        List<Node> args = new ArrayList<>();
+        SExp node;
+        for(node = cdr; !node.isAtom(); node = node.cdr())
+            args.add(compile(node.car(), layout, false));
+        if(!node.isNil()) //Fails once the arguments before it are evaluated
+            args.add(new Failure("Error evaluating " + node.getDottedNotation()));
+        Node[] argNodes = args.toArray(new Node[0]);
+        SExp forked = Parallel.isEnabled() && Parallel.isForkable(cdr)
+                ? cdr : null;
+        Builtin builtin = Builtins.get(car);
+        if(builtin != null && builtin.getUnary() != null && argNodes.length == 1)
+            return new UnaryCall(builtin.getUnary(), argNodes[0]);
+        if(builtin != null && builtin.getBinary() != null && argNodes.length == 2)
+            return new BinaryCall(builtin.getBinary(), argNodes[0], argNodes[1],
+                    forked);
+        if(builtin != null)
+            return new PrimitiveCall(builtin, argNodes, forked);
+        if(tail)
+            return new TailCall(car, argNodes, forked);
+        return new UserCall(car, argNodes, forked);
+    }
+
+    private static Node compileCond(SExp clauses, FrameLayout layout,
+                                    boolean tail) {
+        List<Node> tests = new ArrayList<>();
+        List<Node> values = new ArrayList<>();
+        for(; !clauses.isAtom(); clauses = clauses.cdr()) {
+            SExp clause = clauses.car();
+            if(clause.isAtom()) {
+                tests.add(new Failure(clause.getAtomAsString()
+                        + " should be a list"));
+                values.add(null);
+                break;
+            }
+            if(clause.car() == SymbolTable.QUOTE) {
+                tests.add(new Failure("QUOTE has no value"));
+                values.add(null);
+                break;
+            }
+            tests.add(compile(clause.car(), layout, false));
+            if(clause.cdr().isAtom())
+                values.add(new Failure("COND branch has no value"));
+            else
+                values.add(compile(clause.cdr().car(), layout, tail));
+        }
+        return new Cond(tests.toArray(new Node[0]), values.toArray(new Node[0]));
+    }
+
+    /**
+     * A compiled expression. Nodes keep no state of their own, they run in
+     * the interpreter passed to exec.
+     */
+    abstract static class Node {
+        abstract SExp exec(Interpreter interpreter) throws EvaluationError;
+    }
+
+    static class Constant extends Node {
+        private final SExp value;
+
+        Constant(SExp value) {
+            this.value = value;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) {
+            return value;
+        }
+    }
+
+    //A parameter of the function being executed
+    static class LocalVariable extends Node {
+        private final int slot;
+
+        LocalVariable(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) {
+            return interpreter.aList.getLocal(slot);
+        }
+    }
+
+    //A free variable, looked up in the frames of the callers
+    static class DynamicVariable extends Node {
+        private final SExp symbol;
+
+        DynamicVariable(SExp symbol) {
+            this.symbol = symbol;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            SExp value = interpreter.aList.getValue(symbol);
+            if(value == null)
+                throw new EvaluationError("unbound variable: "
+                        + symbol.getAtomAsString());
+            return value;
+        }
+    }
+
+    //An expression which always fails to evaluate
+    static class Failure extends Node {
+        private final String message;
+
+        Failure(String message) {
+            this.message = message;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            throw new EvaluationError(message);
+        }
+    }
+
+    static class Cond extends Node {
+        private final Node[] tests;
+        private final Node[] values;
+
+        Cond(Node[] tests, Node[] values) {
+            this.tests = tests;
+            this.values = values;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            for(int i = 0; i < tests.length; i++)
+                if(!tests[i].exec(interpreter).isNil())
+                    return values[i].exec(interpreter);
+            throw new EvaluationError("No cases matched!");
+        }
+    }
+
+    static class Defun extends Node {
+        private final SExp definition;
+
+        Defun(SExp definition) {
+            this.definition = definition;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            return Evaluator.defun(interpreter, definition);
+        }
+    }
+
+    abstract static class Call extends Node {
+        final Node[] args;
+        //The argument expressions if they may be forked, otherwise null
+        private final SExp forked;
+
+        Call(Node[] args, SExp forked) {
+            this.args = args;
+            this.forked = forked;
+        }
+
+        //Evaluates the arguments left to right into a list
+        final SExp evalArgs(Interpreter interpreter) throws EvaluationError {
+            if(forked != null && Parallel.mayFork(interpreter))
+                return evalForkedArgs(interpreter);
+            switch(args.length) {
+                case 0:
+                    return SymbolTable.NIL;
+                case 1:
+                    return new SExp(args[0].exec(interpreter), SymbolTable.NIL);
+                case 2: {
+                    SExp first = args[0].exec(interpreter);
+                    return new SExp(first,
+                            new SExp(args[1].exec(interpreter), SymbolTable.NIL));
+                }
+                default: {
+                    SExp[] values = new SExp[args.length];
+                    for(int i = 0; i < args.length; i++)
+                        values[i] = args[i].exec(interpreter);
+                    SExp list = SymbolTable.NIL;
+                    for(int i = values.length - 1; i >= 0; i--)
+                        list = new SExp(values[i], list);
+                    return list;
+                }
+            }
+        }
+
+        private SExp evalForkedArgs(Interpreter interpreter) throws EvaluationError {
+            SExp[] values = Parallel.evaluate(interpreter, forked,
+                    (fork, index) -> args[index].exec(fork));
+            SExp list = SymbolTable.NIL;
+            for(int i = values.length - 1; i >= 0; i--)
+                list = new SExp(values[i], list);
+            return list;
+        }
+    }
+
+    static class PrimitiveCall extends Call {
+        private final Builtin builtin;
+        private final boolean arityChecked;
+
+        PrimitiveCall(Builtin builtin, Node[] args, SExp forked) {
+            super(args, forked);
+            this.builtin = builtin;
+            this.arityChecked = builtin.getArity() == Builtins.VARIADIC
+                    || builtin.getArity() == args.length;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            SExp values = evalArgs(interpreter);
+            //A call with the wrong number of arguments goes through apply,
+            //which reports it
+            return arityChecked ? builtin.applyChecked(values, interpreter)
+                    : builtin.apply(values, interpreter);
+        }
+    }
+
+    static class UnaryCall extends Node {
+        private final Builtin.Unary unary;
+        private final Node arg;
+
+        UnaryCall(Builtin.Unary unary, Node arg) {
+            this.unary = unary;
+            this.arg = arg;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            return unary.apply(arg.exec(interpreter));
+        }
+    }
+
+    static class BinaryCall extends Node {
+        private final Builtin.Binary binary;
+        private final Node op1;
+        private final Node op2;
+        //The argument expressions if they may be forked, otherwise null
+        private final SExp forked;
+
+        BinaryCall(Builtin.Binary binary, Node op1, Node op2, SExp forked) {
+            this.binary = binary;
+            this.op1 = op1;
+            this.op2 = op2;
+            this.forked = forked;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            if(forked != null && Parallel.mayFork(interpreter))
+                return execForked(interpreter);
+            SExp first = op1.exec(interpreter);
+            return binary.apply(first, op2.exec(interpreter), interpreter);
+        }
+
+        private SExp execForked(Interpreter interpreter) throws EvaluationError {
+            SExp[] values = Parallel.evaluate(interpreter, forked,
+                    (fork, index) -> (index == 0 ? op1 : op2).exec(fork));
+            return binary.apply(values[0], values[1], interpreter);
+        }
+    }
+
+    static class UserCall extends Call {
+        private final SExp name;
+
+        UserCall(SExp name, Node[] args, SExp forked) {
+            super(args, forked);
+            this.name = name;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            SExp values = evalArgs(interpreter);
+            return Evaluator.invoke(interpreter,
+                    interpreter.functions.getFunction(name), values);
+        }
+    }
+
+    static class TailCall extends Call {
+        private final SExp name;
+
+        TailCall(SExp name, Node[] args, SExp forked) {
+            super(args, forked);
+            this.name = name;
+        }
+
+        @Override
+        SExp exec(Interpreter interpreter) throws EvaluationError {
+            SExp values = evalArgs(interpreter);
+            interpreter.pendingFunction = interpreter.functions.getFunction(name);
+            interpreter.pendingArgs = values;
+            return TAIL_CALL;
+        }
+    }
+}
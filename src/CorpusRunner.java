@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the shared test corpus on every engine and checks that they agree.
+ * The corpus holds one expression per line; blank lines and lines starting
+ * with ';' are skipped. Each engine evaluates the whole corpus in a fresh
+ * Interpreter, printing "> " and the value, "E " and the evaluation error or
+ * "P " and the parse error of every line, and the outputs of all engines
+ * are compared line by line. A last run evaluates the corpus in the parallel
+ * mode with the default engine, which has to give the same output again.
+ * When a file of expected output is given, every run is compared to it as
+ * well. The corpus and its expected output are kept in corpus/ and are
+ * used when no arguments are given.
+ * Differences are printed and the exit status is 1 if there are any.
+ * Run with: java CorpusRunner [corpus [expected]]
+ * or write the expected output with: java CorpusRunner corpus --print
+ * @author: Pravar Mahajan
+ */
+public class CorpusRunner {
+
+    public static void main(String[] args) throws IOException {
+        Path corpus = Paths.get(args.length > 0 ? args[0] : "corpus/corpus.lisp");
+        List<String> lines = new ArrayList<>();
+        for(String line : Files.readAllLines(corpus, StandardCharsets.UTF_8))
+            if(!line.trim().isEmpty() && !line.startsWith(";"))
+                lines.add(line);
+        Evaluator.Engine defaultEngine = Evaluator.getEngine();
+        if(args.length > 1 && args[1].equals("--print")) {
+            for(String output : run(lines))
+                System.out.println(output);
+            return;
+        }
+        String expectedFile = args.length > 1 ? args[1]
+                : args.length == 0 ? "corpus/expected.out" : null;
+        List<String> expected = expectedFile == null ? null
+                : Files.readAllLines(Paths.get(expectedFile), StandardCharsets.UTF_8);
+
+        List<String> reference = null;
+        String referenceName = null;
+        int differences = 0;
+        for(Evaluator.Engine engine : Evaluator.Engine.values()) {
+            Evaluator.setEngine(engine);
+            List<String> output = run(lines);
+            if(reference == null) {
+                reference = output;
+                referenceName = engine.toString();
+            }
+            differences += compare(lines, reference, referenceName, output,
+                    engine.toString());
+            if(expected != null)
+                differences += compare(lines, expected, "expected", output,
+                        engine.toString());
+        }
+        Evaluator.setEngine(defaultEngine);
+        Parallel.enable();
+        differences += compare(lines, reference, referenceName, run(lines),
+                "parallel " + defaultEngine);
+        System.out.println(lines.size() + " expressions, "
+                + Evaluator.Engine.values().length + " engines and the parallel"
+                + " mode, " + differences + " differences");
+        System.exit(differences == 0 ? 0 : 1);
+    }
+
+    //Evaluates the lines in a new interpreter with the selected engine
+    private static List<String> run(List<String> lines) {
+        Interpreter interpreter = new Interpreter();
+        Parser parser = new Parser();
+        List<String> output = new ArrayList<>();
+        for(String line : lines) {
+            try {
+                output.add("> " + interpreter.evaluate(parser.parseExpression(line))
+                        .getDottedNotation());
+            }
+            catch(ParseError err) {
+                output.add("P " + err.getMessage());
+            }
+            catch(EvaluationError err) {
+                output.add("E " + err.getMessage());
+            }
+            catch(StackOverflowError err) {
+                output.add("E Stack overflow");
+            }
+        }
+        return output;
+    }
+
+    private static int compare(List<String> lines, List<String> expected,
+                               String expectedName, List<String> actual,
+                               String actualName) {
+        int differences = 0;
+        for(int i = 0; i < lines.size(); i++) {
+            String wanted = i < expected.size() ? expected.get(i) : "(missing)";
+            if(wanted.equals(actual.get(i)))
+                continue;
+            differences++;
+            System.out.println(lines.get(i) + "\n  " + expectedName + ": " + wanted
+                    + "\n  " + actualName + ": " + actual.get(i));
+        }
+        return differences;
+    }
+}
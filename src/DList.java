@@ -1,58 +1,243 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * This class defines the declaration list.
  * That is, it contains all the functions which have been defined using DEFUN,
- * along with params and function body. The D-List has been implemented as 
- * an s-expression and all the operations - addition, modification and searching
- * are done recursively on the s-expression.
+ * along with params and function body. The D-List is a hash map keyed by the
+ * interned symbol of the function name, so a call finds its definition with
+ * a single lookup. Each function is stored as one FunctionDef object and a
+ * redefinition replaces that object as a whole.
+ * Every Interpreter has a D-list of its own, so functions defined in one
+ * session are not seen by the others. A D-list can have a library, the
+ * D-list of another interpreter which is no longer changed: functions not
+ * defined in the D-list itself are looked up there, so the functions of the
+ * library are shared by every session built on it and a session can redefine
+ * them for itself only.
  * @author: Pravar Mahajan
  */
 
 public class DList{
     
-    private static SExp dList = SymbolTable.getSExpForAtom("NIL");
-    private DList(){}
+    private final Map<SExp, FunctionDef> functions = new IdentityHashMap<>();
+    //Number of defined functions whose body refers to free variables
+    private int openFunctions = 0;
+    //Number of defined functions whose body contains a DEFUN
+    private int definingFunctions = 0;
+    private final Memo memo; //Cleared when a function is redefined
+    private final DList library; //Read only, or null
+    private final boolean openLibrary; //The library has open functions
+    private final boolean definingLibrary; //The library has defining functions
+
+    DList(Memo memo, DList library) {
+        this.memo = memo;
+        this.library = library;
+        this.openLibrary = library != null && library.hasFreeVariables();
+        this.definingLibrary = library != null && library.definesFunctions();
+    }
    
-    public static void addFunction(String funcName, SExp paramList, SExp body) {
-        
-        if(dList.isNil()) {
-            SExp left = SymbolTable.getSExpForAtom(funcName);
-            SExp right = new SExp(paramList, body);
-            dList = new SExp(new SExp(left, right), dList);
-        }
-        else addFuncHelper(funcName, paramList, body, dList);
+    /**
+     * Adds a function to the D-List, replacing any previous definition.
+     * Replacing a definition clears the results cached by Memo.
+     * @param funcName: symbolic atom naming the function
+     * @param paramList: list of parameter symbols
+     * @param body: function body
+     * @throws EvaluationError if the parameter list is malformed
+     */
+    public void addFunction(SExp funcName, SExp paramList, SExp body)
+            throws EvaluationError {
+        FunctionDef function = new FunctionDef(funcName, paramList, body);
+        FunctionDef previous = functions.put(funcName, function);
+        if(previous != null && previous.hasFreeVariables())
+            openFunctions--;
+        if(previous != null && previous.definesFunctions())
+            definingFunctions--;
+        if(previous != null || (library != null && library.find(funcName) != null))
+            memo.invalidate();
+        if(function.hasFreeVariables())
+            openFunctions++;
+        if(function.definesFunctions())
+            definingFunctions++;
     }
 
-    private static void addFuncHelper(String funcName, SExp paramList,
-                                SExp body, SExp node) {
-        if(node.car().car().getAtomAsString().equals(funcName)) {
-            node.car().setRight(new SExp(paramList, body));
-        }
-        else if(!node.cdr().isNil()) {
-            addFuncHelper(funcName, paramList, body, dList.cdr());
-        }
-        else {
-            SExp left = SymbolTable.getSExpForAtom(funcName);
-            SExp right = new SExp(paramList, body);
-            node.setRight(new SExp(new SExp(left, right), node.cdr()));
-        }
+    /**
+     * @return true if some defined function refers to a variable which is not
+     * one of its parameters, and so depends on the bindings of its callers
+     */
+    boolean hasFreeVariables() {
+        return openFunctions > 0 || openLibrary;
     }
 
-    static SExp getFuncParams(SExp funcName) throws EvaluationError {
-        return findFuncDefRecursively(funcName, dList).car();
+    /**
+     * @return true if the body of some defined function contains a DEFUN, so
+     * calling it may change the D-list
+     */
+    boolean definesFunctions() {
+        return definingFunctions > 0 || definingLibrary;
     }
-    
-    private static SExp findFuncDefRecursively(SExp funcName, SExp node)
-            throws EvaluationError {
-        if(node.isNil())
+
+    /**
+     * @return true if a tail call may pop the frame of the function making
+     * it: no function refers to free variables, and none contains a DEFUN
+     * which could define one that does while the frame is still needed
+     */
+    boolean mayPopFrames() {
+        return !hasFreeVariables() && !definesFunctions();
+    }
+
+    /**
+     * @return a D-list with the same functions and library, which clears the
+     * given Memo when a function is redefined
+     */
+    DList copy(Memo memo) {
+        DList copy = new DList(memo, library);
+        copy.functions.putAll(functions);
+        copy.openFunctions = openFunctions;
+        copy.definingFunctions = definingFunctions;
+        return copy;
+    }
+
+    private FunctionDef find(SExp funcName) {
+        FunctionDef function = functions.get(funcName);
+        if(function == null && library != null)
+            return library.find(funcName);
+        return function;
+    }
+
+    FunctionDef getFunction(SExp funcName) throws EvaluationError {
+        FunctionDef function = find(funcName);
+        if(function == null)
             throw new EvaluationError("Undefined function "
                     + funcName.getAtomAsString());
-        else if(node.car().car().equalsSymbol(funcName.getAtomAsString()))
-            return node.car().cdr();
-        else return findFuncDefRecursively(funcName, node.cdr());
+        return function;
     }
-    
-    static SExp getFuncBody(SExp funcName) throws EvaluationError {
-        return findFuncDefRecursively(funcName, dList).cdr();
+
+}
+
+/**
+ * A function defined with DEFUN: its name, parameter list and body, together
+ * with the frame layout its parameters were resolved to, whether the body
+ * refers to free variables or contains a DEFUN, the body compiled for the
+ * selected engine and the number of calls counted for the JIT.
+ */
+class FunctionDef {
+    private final SExp name;
+    private final SExp params;
+    private final SExp body;
+    private final FrameLayout layout;
+    private final boolean freeVariables;
+    private final boolean defining;
+    private final Compiler.Node code;
+    private final Bytecode bytecode;
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile JIT.Code jitCode; //Set once, read by every session
+
+    FunctionDef(SExp name, SExp params, SExp body) throws EvaluationError {
+        this.name = name;
+        this.params = params;
+        this.body = body;
+        this.layout = new FrameLayout(params);
+        this.freeVariables = refersToFreeVariables(body);
+        this.defining = containsDefun(body);
+        this.code = Evaluator.getEngine() == Evaluator.Engine.COMPILER
+                ? Compiler.compile(body, layout) : null;
+        this.bytecode = Evaluator.getEngine() == Evaluator.Engine.VM
+                ? BytecodeCompiler.compile(body, layout) : null;
     }
 
+    private boolean refersToFreeVariables(SExp expression) {
+        if(expression.isAtom())
+            return expression.isSymbolicAtom() && !expression.isTrue()
+                    && !expression.isNil() && layout.slotOf(expression) < 0;
+        SExp func = expression.car();
+        if(func == SymbolTable.QUOTE || func == SymbolTable.DEFUN)
+            return false;
+        for(SExp node = expression.cdr(); !node.isAtom(); node = node.cdr()) {
+            if(func == SymbolTable.COND) {
+                //Both the condition and the value of a branch are evaluated
+                for(SExp part = node.car(); !part.isAtom(); part = part.cdr())
+                    if(refersToFreeVariables(part.car()))
+                        return true;
+            }
+            else if(refersToFreeVariables(node.car()))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean containsDefun(SExp expression) {
+        if(expression.isAtom() || expression.car() == SymbolTable.QUOTE)
+            return false;
+        if(expression.car() == SymbolTable.DEFUN)
+            return true;
+        for(SExp node = expression; !node.isAtom(); node = node.cdr())
+            if(containsDefun(node.car()))
+                return true;
+        return false;
+    }
+
+    SExp getName() {
+        return name;
+    }
+
+    SExp getParams() {
+        return params;
+    }
+
+    SExp getBody() {
+        return body;
+    }
+
+    FrameLayout getLayout() {
+        return layout;
+    }
+
+    boolean hasFreeVariables() {
+        return freeVariables;
+    }
+
+    boolean definesFunctions() {
+        return defining;
+    }
+
+    /**
+     * @return the body compiled to nodes, or null unless the function was
+     * defined with the COMPILER engine
+     */
+    Compiler.Node getCode() {
+        return code;
+    }
+
+    /**
+     * @return the body compiled to bytecode, or null unless the function was
+     * defined with the VM engine
+     */
+    Bytecode getBytecode() {
+        return bytecode;
+    }
+
+    /**
+     * Counts a call of the function, which is compiled by the JIT on the call
+     * reaching the threshold. If that fails, the function keeps running as
+     * before. The JIT is off in the parallel mode, as the code it generates
+     * evaluates arguments in sequence. Sessions of a server share the
+     * definitions, so the count is raised with a compare-and-set: a call lost
+     * to a concurrent one only delays the compilation, and exactly one call
+     * reaches the threshold and compiles.
+     */
+    void countCall() {
+        if(Parallel.isEnabled())
+            return;
+        int count = calls.get();
+        if(count < JIT.THRESHOLD && calls.compareAndSet(count, count + 1)
+                && count + 1 == JIT.THRESHOLD)
+            jitCode = JIT.compile(this);
+    }
+
+    /**
+     * @return the body compiled to a JVM class by the JIT, or null
+     */
+    JIT.Code getJitCode() {
+        return jitCode;
+    }
 }
@@ -0,0 +1,69 @@
+/**
+ * Compares the speed of the engines on the same programs: a recursive
+ * Fibonacci, a tail recursive counting loop and the naive reverse of a list,
+ * which exercise calls, arithmetic and cons cells. For every engine the
+ * functions are defined in a fresh Interpreter, each program is run a few
+ * times to warm up and the best of the timed runs is reported together with
+ * the time relative to the INTERPRETER. Every result is checked, so an engine
+ * which computes something else fails. Functions called often are compiled
+ * by the JIT unless it is turned off with -Dlisp.jit.threshold=0.
+ * Run with: java EngineBenchmark [rounds]
+ * @author: Pravar Mahajan
+ */
+public class EngineBenchmark {
+
+    private static final String LIBRARY =
+            "(DEFUN FIB (N) (COND ((LESS N 2) N)"
+            + " (T (PLUS (FIB (MINUS N 1)) (FIB (MINUS N 2))))))"
+            + " (DEFUN COUNT (N ACC) (COND ((EQ N 0) ACC)"
+            + " (T (COUNT (MINUS N 1) (PLUS ACC 1)))))"
+            + " (DEFUN MAKE (N) (COND ((EQ N 0) NIL) (T (CONS N (MAKE (MINUS N 1))))))"
+            + " (DEFUN APPEND (X Y) (COND ((NULL X) Y)"
+            + " (T (CONS (CAR X) (APPEND (CDR X) Y)))))"
+            + " (DEFUN REV (X) (COND ((NULL X) NIL)"
+            + " (T (APPEND (REV (CDR X)) (CONS (CAR X) NIL)))))"
+            + " (DEFUN LEN (L ACC) (COND ((NULL L) ACC)"
+            + " (T (LEN (CDR L) (PLUS ACC 1)))))";
+
+    //Programs and their expected results
+    private static final String[][] PROGRAMS = {
+        {"(FIB 22)", "17711"},
+        {"(COUNT 300000 0)", "300000"},
+        {"(LEN (REV (MAKE 600)) 0)", "600"}
+    };
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        double[] reference = new double[PROGRAMS.length];
+        for(Evaluator.Engine engine : Evaluator.Engine.values()) {
+            Evaluator.setEngine(engine);
+            Interpreter interpreter = new Interpreter();
+            interpreter.evaluate(LIBRARY);
+            for(int p = 0; p < PROGRAMS.length; p++) {
+                double best = measure(interpreter, PROGRAMS[p], rounds);
+                if(engine == Evaluator.Engine.INTERPRETER)
+                    reference[p] = best;
+                System.out.printf("%-12s %-26s %8.2f ms  %5.2fx%n", engine,
+                        PROGRAMS[p][0], best, best / reference[p]);
+            }
+        }
+    }
+
+    //Best time of the rounds in milliseconds, after as many warm up runs
+    private static double measure(Interpreter interpreter, String[] program,
+                                  int rounds) throws Exception {
+        SExp expression = new Parser().parseExpression(program[0]);
+        long best = Long.MAX_VALUE;
+        for(int round = 0; round < 2 * rounds; round++) {
+            long startTime = System.nanoTime();
+            String result = interpreter.evaluate(expression).getDottedNotation();
+            long nanos = System.nanoTime() - startTime;
+            if(!result.equals(program[1]))
+                throw new IllegalStateException(program[0] + " returned " + result
+                        + " instead of " + program[1]);
+            if(round >= rounds)
+                best = Math.min(best, nanos);
+        }
+        return best / 1e6;
+    }
+}
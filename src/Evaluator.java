@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * This class contains functions for evaluation of the s-expression tree.
  * All the functions are private except eval, which accepts an s-expression
@@ -11,199 +13,312 @@
  * This class evaluates an s-expression and gives simplified answer as output.
  * eval is a static function which is the only public function in the class.
  * Other functions are helper functions. applyFun applies a function on the args,
- * evallist recursively evaluates a list of arguments by calling eval. evcond
- * evaulates a condition statement.
+ * evallist evaluates a list of arguments by calling eval. evcond
+ * evaulates a condition statement. Tail calls are evaluated iteratively by
+ * eval itself, see there.
+ * Every function takes the Interpreter whose A-list, D-list and VM it works
+ * on, so separate interpreters can evaluate on separate threads at once.
  * Special handling has been provided for DEFUN, QUOTE and COND since these
  * functions require the arguments to not be evaluated.
- * Following are the primitive functions which have been implemented in applyFun:
- * CAR, CDR, CONS, ATOM, EQ, NULL, INT, PLUS, MINUS, TIMES, QUOTIENT, REMAINDER,
- * LESS, GREATER
+ * applyFun looks the function up in the Builtins table first, which holds the
+ * primitives CAR, CDR, CONS, ATOM, EQ, NULL, INT, PLUS, MINUS, TIMES, QUOTIENT,
+ * REMAINDER, LESS, GREATER, and falls back to the functions in the D-List.
  */
 public class Evaluator {
 
-    private static SExp applyFun(SExp func, SExp args) throws EvaluationError {
-        assert func.isSymbolicAtom();
-        if(func.equalsSymbol("CAR")) {
-            checkValidNumArgs(func, args, 1);
-            if(args.car().isAtom())
-                throw new EvaluationError(args.car().getAtomAsString()
-                        + " is an atom");
-            return args.car().car();
-        }
-        else if(func.equalsSymbol("CDR")) {
-            checkValidNumArgs(func, args, 1);
-            if(args.car().isAtom())
-                throw new EvaluationError(args.car().getAtomAsString()
-                        + " is an atom");
-            return args.car().cdr();
-        }
-        else if(func.equalsSymbol("CONS")) {
-            checkValidNumArgs(func, args, 2);  
-            return args.car().cons(args.cdr().car());
-        }
-        else if(func.equalsSymbol("ATOM")) {
-            checkValidNumArgs(func, args, 1);
-            return SExp.boolToSExp(args.car().isAtom());
-        }
-        else if(func.equalsSymbol("NULL")) {
-            checkValidNumArgs(func, args, 1);
-            return SExp.boolToSExp(args.car().isNil());
-        }
-        else if(func.equalsSymbol("EQ")) {
-            checkValidNumArgs(func, args, 2);
-            return args.car().equals(args.cdr().car());
-        }
-        else if(func.equalsSymbol("INT")) {
-            checkValidNumArgs(func, args, 1);
-            return SExp.boolToSExp(args.car().isIntegerAtom());
-        }
-        else if(func.equalsSymbol("PLUS")) {
-            checkValidNumArgs(func, args, 2);
-            checkIntegerAtoms(args.car(), args.cdr().car());
-            return SExp.plus(args.car(), args.cdr().car());
-        }
-        else if(func.equalsSymbol("MINUS")) {
-            checkValidNumArgs(func, args, 2);
-            checkIntegerAtoms(args.car(), args.cdr().car());
-            return SExp.minus(args.car(), args.cdr().car());
-        }
-        else if(func.equalsSymbol("TIMES")) {
-            checkValidNumArgs(func, args, 2);
-            checkIntegerAtoms(args.car(), args.cdr().car());
-            return SExp.times(args.car(), args.cdr().car());
-        }
-        else if(func.equalsSymbol("QUOTIENT")) {
-            checkValidNumArgs(func, args, 2);
-            checkIntegerAtoms(args.car(), args.cdr().car());
-            return SExp.quotient(args.car(), args.cdr().car());
-        }
-        else if(func.equalsSymbol("REMAINDER")) {
-            checkValidNumArgs(func, args, 2);
-            checkIntegerAtoms(args.car(), args.cdr().car());
-            return SExp.remainder(args.car(), args.cdr().car());           
-        }
-        else if(func.equalsSymbol("LESS")) {
-            checkValidNumArgs(func, args, 2);
-            checkIntegerAtoms(args.car(), args.cdr().car());
-            return SExp.less(args.car(), args.cdr().car());            
-        }
-        else if(func.equalsSymbol("GREATER")) {
-            checkValidNumArgs(func, args, 2);
-            checkIntegerAtoms(args.car(), args.cdr().car());
-            return SExp.greater(args.car(), args.cdr().car());            
-        }
-        else {
-            SExp params = DList.getFuncParams(func);
-            assert !params.isNil();
-            AList.addPairs(params, args);
-            SExp res = eval(DList.getFuncBody(func));
-            AList.destroy(params);
-            return res;
-        }
-        
+    /**
+     * The ways function bodies can be executed. INTERPRETER evaluates the
+     * body with eval on every call, COMPILER compiles it to a tree of nodes
+     * (see Compiler) and VM compiles it to bytecode for the VM, which runs top
+     * level expressions as well. The engine is chosen at startup with the
+     * --engine option or the lisp.engine system property; COMPILER is the
+     * default.
+     */
+    public enum Engine {
+        INTERPRETER, COMPILER, VM
     }
 
-    private static void checkIntegerAtoms(SExp op1, SExp op2)
+    private static Engine engine = Engine.valueOf(
+            System.getProperty("lisp.engine", "COMPILER").toUpperCase());
+
+    public static Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Selects the engine. Functions keep the engine they were defined with,
+     * so this should be called before any function is defined.
+     */
+    public static void setEngine(Engine selected) {
+        engine = selected;
+    }
+
+    /**
+     * Applies a function to already evaluated arguments.
+     */
+    static SExp applyFun(Interpreter interpreter, SExp func, SExp args)
             throws EvaluationError {
-        if(!op1.isIntegerAtom() || !op2.isIntegerAtom())
-            throw new EvaluationError("Operands must be integers!");
+        assert func.isSymbolicAtom();
+        Builtin builtin = Builtins.get(func);
+        if(builtin != null)
+            return builtin.apply(args, interpreter);
+        return invoke(interpreter, interpreter.functions.getFunction(func), args);
     }
 
-    private static void checkValidNumArgs(SExp func, SExp args, int n)
+    /**
+     * Calls a user function. Compiled bodies, including those compiled by the
+     * JIT once the function is hot, are executed here, bytecode is handed to
+     * the VM and interpreted bodies to eval. Tail calls compiled code and the
+     * VM hand back are returned as Compiler.TAIL_CALL and continued by the loop,
+     * with the same frame handling as the tail calls in eval.
+     * The calls of memoized functions are looked up in the Memo cache. All
+     * calls of a tail call chain return the same value; the result is cached
+     * once, for the first memoized call of the chain, so a long chain runs in
+     * constant space.
+     */
+    static SExp invoke(Interpreter interpreter, FunctionDef function, SExp args)
             throws EvaluationError {
-        int count = 0;
-        while(!args.isNil()) {
-            args = args.cdr();
-            count++;
+        AList aList = interpreter.aList;
+        Memo memo = interpreter.memo;
+        int frames = 0;
+        Memo.Key memoKey = null; //First memoized call of this tail call chain
+        try {
+            while(true) {
+                interpreter.checkCall();
+                if(interpreter.isMemoized(function)) {
+                    Memo.Key key = new Memo.Key(function, args);
+                    SExp cached = memo.get(key);
+                    if(cached != null)
+                        return memo.store(memoKey, cached);
+                    if(memoKey == null)
+                        memoKey = key;
+                }
+                if(frames > 0 && interpreter.functions.mayPopFrames()) {
+                    aList.popFrame();
+                    frames--;
+                }
+                SExp result;
+                if(function.getBytecode() != null)
+                    result = interpreter.vm.call(function, args);
+                else {
+                    function.countCall();
+                    aList.pushFrame(function.getLayout(), args);
+                    frames++;
+                    if(function.getJitCode() != null)
+                        result = function.getJitCode().run(interpreter);
+                    else if(function.getCode() != null)
+                        result = function.getCode().exec(interpreter);
+                    else
+                        result = eval(interpreter, function.getBody(), true);
+                }
+                if(result != Compiler.TAIL_CALL)
+                    return memo.store(memoKey, result);
+                function = interpreter.pendingFunction;
+                args = interpreter.pendingArgs;
+                interpreter.pendingFunction = null;
+                interpreter.pendingArgs = null;
+            }
+        }
+        finally {
+            while(frames-- > 0)
+                aList.popFrame();
         }
-        if(count < n)
-            throw new EvaluationError("Too few arguments to "
-                    + func.getAtomAsString());
-        else if(count > n)
-            throw new EvaluationError("Too many arguments to "
-                    + func.getAtomAsString());
     }
     
     //Private constructor to ensure no objects of this class are created
     private Evaluator() {}
     
-    public static final SExp evlist(SExp list) throws EvaluationError {
-        if(list.isNil()) {
-            return list;
+    /**
+     * Evaluates a top level expression with the selected engine.
+     */
+    public static SExp evaluate(Interpreter interpreter, SExp sExp)
+            throws EvaluationError {
+        if(engine == Engine.VM)
+            return interpreter.vm.execute(BytecodeCompiler.compileTopLevel(sExp));
+        return eval(interpreter, sExp);
+    }
+
+    /**
+     * Evaluates every element of a list.
+     * The elements are evaluated left to right and the result list is built
+     * from the tail, without recursion. In the parallel mode elements calling
+     * user functions may be evaluated at the same time, see Parallel.
+     */
+    public static final SExp evlist(Interpreter interpreter, SExp list)
+            throws EvaluationError {
+        if(Parallel.isEnabled() && Parallel.isForkable(list)
+                && Parallel.mayFork(interpreter)) {
+            SExp args = list;
+            SExp[] values = Parallel.evaluate(interpreter, args,
+                    (forked, index) -> eval(forked, nth(args, index)));
+            SExp result = SymbolTable.NIL;
+            for(int i = values.length - 1; i >= 0; i--)
+                result = new SExp(values[i], result);
+            return result;
         }
-        else {
-            SExp head, rest;
-            head = eval(list.car());
-            rest = evlist(list.cdr());
-            return head.cons(rest);
+        SExp[] values = new SExp[4];
+        int count = 0;
+        for(; !list.isAtom(); list = list.cdr()) {
+            if(count == values.length)
+                values = Arrays.copyOf(values, count * 2);
+            values[count++] = eval(interpreter, list.car());
         }
+        if(!list.isNil())
+            throw new EvaluationError("Error evaluating "
+                    + list.getDottedNotation());
+        SExp result = SymbolTable.NIL;
+        while(count > 0)
+            result = new SExp(values[--count], result);
+        return result;
     }
     
-    public static final SExp eval(SExp sExp) throws EvaluationError {
-        if(sExp.isAtom()) {
-            if(sExp.isIntegerAtom() || sExp.isTrue() || sExp.isNil())
-                return sExp;
-            else if(AList.contains(sExp.getAtomAsString()))
-                return AList.getValue(sExp.getAtomAsString());
-            else throw new EvaluationError("unbound variable: "
-                    + sExp.getAtomAsString());
-        }
-        else if(sExp.car().isSymbolicAtom()) {
+    private static SExp nth(SExp list, int index) {
+        while(index-- > 0)
+            list = list.cdr();
+        return list.car();
+    }
+
+    /**
+     * Evaluates an s-expression.
+     * Expressions in tail position, the selected branch of a COND and the
+     * body of a called user function, are evaluated by the loop in place of a
+     * recursive call, so tail recursive functions run in constant Java stack.
+     * The frames pushed for tail calls are owned by this activation and
+     * popped when it returns. If no defined function refers to free
+     * variables or contains a DEFUN, which could define one that does, the
+     * frame of the calling function can no longer be seen by anyone once the
+     * arguments of a tail call are evaluated, and it is popped right away;
+     * otherwise it is kept for the dynamic lookups.
+     */
+    public static final SExp eval(Interpreter interpreter, SExp sExp)
+            throws EvaluationError {
+        return eval(interpreter, sExp, false);
+    }
+
+    /**
+     * Evaluates an s-expression, see above.
+     * @param invoked: true if the expression is the body of a function called
+     * by invoke. Tail calls of functions which invoke runs, such as memoized
+     * ones, are then handed back to it as Compiler.TAIL_CALL, so that chains
+     * of them run in constant Java stack as well.
+     */
+    private static SExp eval(Interpreter interpreter, SExp sExp, boolean invoked)
+            throws EvaluationError {
+        AList aList = interpreter.aList;
+        DList functions = interpreter.functions;
+        int frames = 0;
+        try {
+            while(true) {
+                if(sExp.isAtom()) {
+                    if(sExp.isIntegerAtom() || sExp.isTrue() || sExp.isNil())
+                        return sExp;
+                    SExp value = aList.getValue(sExp);
+                    if(value != null)
+                        return value;
+                    else throw new EvaluationError("unbound variable: "
+                            + sExp.getAtomAsString());
+                }
+                if(!sExp.car().isSymbolicAtom())
+                    throw new EvaluationError(sExp.car().getDottedNotation()
+                            + " is not a function");
                 SExp car = sExp.car();
                 SExp cdr = sExp.cdr();
-                if(car.equalsSymbol("QUOTE")) {
+                if(car == SymbolTable.QUOTE) {
                     if(!cdr.isNil() && cdr.cdr().isNil())
                         return cdr.car();
                     else if(cdr.isNil())
                         throw new EvaluationError("Too few params for QUOTE");
                     else throw new EvaluationError("Too many params for QUOTE");
                 }
-                else if(car.equalsSymbol("COND")) {
+                else if(car == SymbolTable.COND) {
                     if(cdr.isNil())
                         throw new EvaluationError("Too few params for COND");
-                    return evcon(cdr);
+                    sExp = selectCondBranch(interpreter, cdr);
                 }
-                else if(car.equalsSymbol("DEFUN")) {
-                    if(cdr.isNil())
-                        throw new EvaluationError("Cannot form function with NIL");
-                    else if(!cdr.car().isSymbolicAtom())
-                        throw new EvaluationError("Name of the function should be symbol");
-                    String funcName = cdr.car().getAtomAsString();
-                    SExp params = cdr.cdr().car();
-                    if(params.isAtom())
-                        throw new EvaluationError("Params list should be a list"
-                         + ", not an atom");
-                    SExp body = cdr.cdr().cdr().car();
-                    DList.addFunction(funcName, params, body);
-                    return SymbolTable.getSExpForAtom(funcName);
+                else if(car == SymbolTable.DEFUN) {
+                    return defun(interpreter, cdr);
                 }
                 else {
-                    if(sExp.cdr().isSymbolicAtom())
+                    if(cdr.isAtom() && !cdr.isNil())
                         throw new EvaluationError("Error evaluating "
                                         + sExp.getDottedNotation());
-                    return applyFun(sExp.car(), evlist(sExp.cdr()));
+                    SExp args = evlist(interpreter, cdr);
+                    Builtin builtin = Builtins.get(car);
+                    if(builtin != null)
+                        return builtin.apply(args, interpreter);
+                    FunctionDef function = functions.getFunction(car);
+                    interpreter.checkCall();
+                    boolean invoke = function.getCode() != null
+                            || function.getBytecode() != null
+                            || interpreter.isMemoized(function);
+                    if(!invoke) {
+                        function.countCall();
+                        invoke = function.getJitCode() != null;
+                    }
+                    if(invoke && invoked && functions.mayPopFrames()) {
+                        interpreter.pendingFunction = function;
+                        interpreter.pendingArgs = args;
+                        return Compiler.TAIL_CALL; //Frames popped below
+                    }
+                    if(invoke)
+                        return invoke(interpreter, function, args);
+                    if(frames > 0 && functions.mayPopFrames()) {
+                        aList.popFrame();
+                        frames--;
+                    }
+                    aList.pushFrame(function.getLayout(), args);
+                    frames++;
+                    sExp = function.getBody();
                 }
             }
-        else {
-            throw new EvaluationError(sExp.car().getDottedNotation()
-                    + " is not a function");
         }
+        finally {
+            while(frames-- > 0)
+                aList.popFrame();
+        }
+    }
+
+    static SExp defun(Interpreter interpreter, SExp cdr) throws EvaluationError {
+        if(cdr.isNil())
+            throw new EvaluationError("Cannot form function with NIL");
+        else if(!cdr.car().isSymbolicAtom())
+            throw new EvaluationError("Name of the function should be symbol");
+        SExp funcName = cdr.car();
+        SExp params = cdr.cdr().car();
+        if(params.isAtom())
+            throw new EvaluationError("Params list should be a list"
+             + ", not an atom");
+        SExp body = cdr.cdr().cdr().car();
+        interpreter.functions.addFunction(funcName, params, body);
+        return funcName;
     }
     
-    public static final SExp evcon(SExp condExpressions) throws EvaluationError {
-        if(condExpressions.isNil())
-            throw new EvaluationError("No cases matched!");
-        else if(condExpressions.car().isAtom())
-            throw new EvaluationError(condExpressions.car().getAtomAsString()
-                + " should be a list");
-        else if(condExpressions.car().car().equalsSymbol("QUOTE"))
-            throw new EvaluationError("QUOTE has no value");
-        else if(!eval(condExpressions.car().car()).isNil()) {
-            return eval(condExpressions.car().cdr().car());
-        }
-        else {
-            return evcon(condExpressions.cdr());
+    public static final SExp evcon(Interpreter interpreter, SExp condExpressions)
+            throws EvaluationError {
+        return eval(interpreter, selectCondBranch(interpreter, condExpressions));
+    }
+
+    /**
+     * Evaluates the conditions of a COND in order.
+     * @return the unevaluated expression of the first branch whose condition
+     * is not NIL
+     */
+    private static SExp selectCondBranch(Interpreter interpreter,
+                                         SExp condExpressions)
+            throws EvaluationError {
+        for(; !condExpressions.isAtom(); condExpressions = condExpressions.cdr()) {
+            if(condExpressions.car().isAtom())
+                throw new EvaluationError(condExpressions.car().getAtomAsString()
+                    + " should be a list");
+            else if(condExpressions.car().car() == SymbolTable.QUOTE)
+                throw new EvaluationError("QUOTE has no value");
+            else if(!eval(interpreter, condExpressions.car().car()).isNil()) {
+                if(condExpressions.car().cdr().isAtom())
+                    throw new EvaluationError("COND branch has no value");
+                return condExpressions.car().cdr().car();
+            }
         }
+        throw new EvaluationError("No cases matched!");
     }
 
 
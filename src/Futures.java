@@ -0,0 +1,141 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class implements the primitives for explicit parallelism.
+ * (FUTURE F ARG ...) applies the function named F to the arguments on the
+ * threads of the Parallel pool and returns a future at once, an atom which
+ * prints as #FUTURE. (TOUCH X) waits for the future X and returns the result
+ * of its call, or raises the error the call failed with; any other value is
+ * returned as it is. Errors of futures which are never touched are dropped.
+ * TOUCH stops waiting when its evaluation is cancelled or runs out of its
+ * budget, leaving the future running.
+ * (PMAP F LIST) applies the function named F to every element of the list
+ * and returns the list of the results, in order. The list is split into
+ * chunks of consecutive elements, a few per thread of the pool, and the
+ * chunks are evaluated in parallel like arguments (see Parallel), so if the
+ * function fails for several elements the error of the leftmost is raised.
+ * Functions are passed by name, as quoted symbols: (PMAP (QUOTE SQ) L). They
+ * may be primitives or user functions.
+ * A future is evaluated by an interpreter forked from the one calling FUTURE
+ * (see Interpreter.forkFuture): it sees the functions and variables as they
+ * were when it started, and functions it defines are its own. PMAP joins its
+ * chunks before it returns, so they run in interpreters which share the
+ * D-list and variables of the caller; while a defined function contains a
+ * DEFUN it applies the function sequentially.
+ * These primitives work with every engine and do not need the parallel mode.
+ * @author: Pravar Mahajan
+ */
+class Futures {
+
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private Futures() {}
+
+    /**
+     * The value of FUTURE: an object atom holding the running call.
+     */
+    static final class Future extends SExp {
+        private final Call call;
+
+        Future(Call call) {
+            super("#FUTURE");
+            this.call = call;
+        }
+    }
+
+    //A call of a future, run by a forked interpreter
+    private static final class Call extends RecursiveAction {
+        private final Interpreter interpreter;
+        private final SExp function;
+        private final SExp args;
+        private SExp value;
+        private Throwable failure;
+
+        Call(Interpreter interpreter, SExp function, SExp args) {
+            this.interpreter = interpreter;
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                interpreter.settleBudget();
+                value = Evaluator.applyFun(interpreter, function, args);
+                interpreter.settleBudget();
+            }
+            catch(EvaluationError | RuntimeException | Error e) {
+                failure = e;
+            }
+        }
+    }
+
+    static SExp future(SExp args, Interpreter interpreter) throws EvaluationError {
+        if(args.isNil())
+            throw new EvaluationError("Too few arguments to FUTURE");
+        SExp function = checkFunction(args.car(), "FUTURE");
+        Call call = new Call(interpreter.forkFuture(), function, args.cdr());
+        Parallel.start(call);
+        return new Future(call);
+    }
+
+    static SExp touch(SExp args, Interpreter interpreter) throws EvaluationError {
+        SExp value = args.car();
+        if(!(value instanceof Future))
+            return value;
+        Call call = ((Future) value).call;
+        Parallel.join(interpreter, call);
+        Parallel.rethrow(call.failure);
+        return call.value;
+    }
+
+    static SExp pmap(SExp args, Interpreter interpreter) throws EvaluationError {
+        SExp function = checkFunction(args.car(), "PMAP");
+        SExp list = args.cdr().car();
+        int count = 0;
+        SExp node;
+        for(node = list; !node.isAtom(); node = node.cdr())
+            count++;
+        if(!node.isNil())
+            throw new EvaluationError("PMAP needs a list, not "
+                    + list.getDottedNotation());
+        SExp[] elements = new SExp[count];
+        node = list;
+        for(int i = 0; i < count; i++, node = node.cdr())
+            elements[i] = node.car();
+
+        SExp[] results = new SExp[count];
+        int chunks = Math.min(count, CHUNKS_PER_THREAD * Parallel.getThreads());
+        if(chunks < 2 || !Parallel.mayFork(interpreter))
+            apply(interpreter, function, elements, results, 0, count);
+        else
+            Parallel.evaluateAll(interpreter, chunks, (forked, chunk) -> {
+                apply(forked, function, elements, results,
+                        (int) ((long) elements.length * chunk / chunks),
+                        (int) ((long) elements.length * (chunk + 1) / chunks));
+                return SymbolTable.NIL;
+            });
+        SExp result = SymbolTable.NIL;
+        for(int i = count - 1; i >= 0; i--)
+            result = new SExp(results[i], result);
+        return result;
+    }
+
+    //Applies the function to the elements in [from, to), stopping at the
+    //first which fails
+    private static void apply(Interpreter interpreter, SExp function,
+                              SExp[] elements, SExp[] results, int from, int to)
+            throws EvaluationError {
+        for(int i = from; i < to; i++)
+            results[i] = Evaluator.applyFun(interpreter, function,
+                    new SExp(elements[i], SymbolTable.NIL));
+    }
+
+    private static SExp checkFunction(SExp function, String primitive)
+            throws EvaluationError {
+        if(!function.isSymbolicAtom() || function.isNil() || function.isTrue())
+            throw new EvaluationError(primitive + " needs the name of a function,"
+                    + " not " + function.getDottedNotation());
+        return function;
+    }
+}
@@ -0,0 +1,143 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * This class implements the optional hash consing of cons cells.
+ * When it is enabled, with -Dlisp.hashcons=true, --hash-cons or enable, the
+ * cells built by the parser and by CONS are interned in a table like the
+ * symbols are: building a cell whose car and cdr equal those of an existing
+ * interned cell returns that cell, so identical subtrees share memory and
+ * two interned expressions are structurally equal only if they are the same
+ * object. The structural hash of an interned cell is computed from the
+ * hashes of its car and cdr when it is created and kept in the cell.
+ * A cell is interned only if its car and cdr are atoms or interned cells
+ * themselves, which holds for everything the parser and CONS build. Cells
+ * made otherwise, such as argument lists, stay ordinary cells.
+ * The table refers to the cells through weak references, so cells no longer
+ * used anywhere else are collected and their entries dropped.
+ * The table is shared by every Interpreter; cells are interned under the
+ * class lock, which is not taken while hash consing is off.
+ * @author: Pravar Mahajan
+ */
+public class HashCons {
+
+    private static volatile boolean enabled = Boolean.getBoolean("lisp.hashcons");
+
+    private static Entry[] table = new Entry[1024];
+    private static int count = 0;
+    private static final ReferenceQueue<SExp> collected = new ReferenceQueue<>();
+
+    private static long hits = 0; //Cells found in the table
+
+    private HashCons() {}
+
+    //A weak reference to an interned cell, chained in a bucket of the table
+    private static final class Entry extends WeakReference<SExp> {
+        final int hash;
+        Entry next;
+
+        Entry(SExp cell, int hash, Entry next) {
+            super(cell, collected);
+            this.hash = hash;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Interns the cells built from now on.
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Builds a cons cell, returning the interned cell with the same car and
+     * cdr when hash consing is enabled.
+     */
+    static SExp cons(SExp car, SExp cdr) {
+        if(!enabled || !car.isCanonical() || !cdr.isCanonical())
+            return new SExp(car, cdr);
+        return intern(car, cdr);
+    }
+
+    private static synchronized SExp intern(SExp car, SExp cdr) {
+        removeCollected();
+        int hash = SExp.combineHashes(car.structuralHash(), cdr.structuralHash());
+        int index = hash & (table.length - 1);
+        for(Entry entry = table[index]; entry != null; entry = entry.next) {
+            SExp cell = entry.get();
+            if(entry.hash == hash && cell != null && same(cell.car(), car)
+                    && same(cell.cdr(), cdr)) {
+                hits++;
+                return cell;
+            }
+        }
+        SExp cell = new SExp(car, cdr, hash);
+        table[index] = new Entry(cell, hash, table[index]);
+        if(++count > table.length - table.length / 4)
+            resize();
+        return cell;
+    }
+
+    //Children of interned cells are atoms or interned cells, so they are
+    //equal if they are the same object or equal integers
+    private static boolean same(SExp child, SExp other) {
+        return child == other || (child.isIntegerAtom() && other.isIntegerAtom()
+                && child.equals(other).isTrue());
+    }
+
+    //Unlinks the entries of the cells which were garbage collected
+    private static void removeCollected() {
+        Entry dead;
+        while((dead = (Entry) collected.poll()) != null) {
+            int index = dead.hash & (table.length - 1);
+            Entry previous = null;
+            for(Entry entry = table[index]; entry != null; entry = entry.next) {
+                if(entry == dead) {
+                    if(previous == null)
+                        table[index] = entry.next;
+                    else
+                        previous.next = entry.next;
+                    count--;
+                    break;
+                }
+                previous = entry;
+            }
+        }
+    }
+
+    private static void resize() {
+        Entry[] newTable = new Entry[table.length * 2];
+        int mask = newTable.length - 1;
+        for(Entry head : table) {
+            Entry entry = head;
+            while(entry != null) {
+                Entry next = entry.next;
+                int index = entry.hash & mask;
+                entry.next = newTable[index];
+                newTable[index] = entry;
+                entry = next;
+            }
+        }
+        table = newTable;
+    }
+
+    /**
+     * @return the number of interned cells, including collected cells whose
+     * entries have not been dropped yet
+     */
+    public static synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return how many times building a cell returned an interned one
+     */
+    public static synchronized long getHits() {
+        return hits;
+    }
+}
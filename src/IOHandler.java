@@ -1,27 +1,59 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.Scanner;
 
 /**
  * This class provides routines for input and output of S-Expressions.
  * The entire input is read into a string and returned to the caller.
  * When provided with a tree like SExp object, the output routine
- * prints in memory ojbect in the full dot notation.
+ * prints in memory ojbect in the full dot notation, or as set with setPrinter.
+ * The expression is streamed by the Printer to a buffered writer on the
+ * standard output, which is flushed once it is printed.
  * @author: Pravar Mahajan
  */
 public class IOHandler {
     
     boolean exitSignal;
+    private final Scanner inputReader;
+    private final PrintWriter output;
+    private Printer printer = Printer.DOT;
     
     public IOHandler() {
         exitSignal = false;
+        inputReader = new Scanner(System.in);
+        output = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out)));
     }
     
     public boolean getExitSignal() {
         return exitSignal;
     }
     
+    public Printer getPrinter() {
+        return printer;
+    }
+
+    /**
+     * Sets the notation and limits expressions are printed with.
+     */
+    public void setPrinter(Printer printer) {
+        this.printer = printer;
+    }
+
     public void printSExpression(SExp sExpression) {
-        if(sExpression != null)
-            System.out.println("> " + sExpression.getDottedNotation());
+        if(sExpression == null)
+            return;
+        output.print("> ");
+        try {
+            printer.print(sExpression, output);
+        }
+        catch(IOException e) {
+            //A PrintWriter does not throw, it sets its error flag
+        }
+        output.println();
+        output.flush();
     }
     
     /**
@@ -29,17 +61,20 @@ public class IOHandler {
      * The expression can span multiple lines, however it should always end
      * with a new line consisting of '$' character.
      * If a new line with '$$' is encountered, it singals exit flag which
-     * is captured by the main function and the program quits.
+     * is captured by the main function and the program quits. The end of the
+     * input is treated like '$$'.
      * @return concatenated expression.
      */
     public String inputExpression() {
         StringBuilder inputString = new StringBuilder();
-        Scanner inputReader = new Scanner(System.in);
-        String line = "";
+        String line;
         System.out.print("? ");
         while(true) {
-            if(inputReader.hasNextLine())
-                line = inputReader.nextLine();
+            if(!inputReader.hasNextLine()) {
+                exitSignal = true;
+                break;
+            }
+            line = inputReader.nextLine();
             if(line.equals("$"))
                 break;
             else if(line.equals("$$")) {
@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+
+/**
+ * This class is one session of the interpreter.
+ * An Interpreter owns everything an evaluation changes: the A-list of
+ * variable bindings, the D-list of functions defined with DEFUN, the stacks of
+ * the VM, the tail call being handed back to Evaluator.invoke and the Memo
+ * cache. Functions defined in one interpreter are not seen by the others, so
+ * independent sessions can run side by side, each on its own thread.
+ * An interpreter is not itself thread safe; it is used by one thread at a
+ * time. What the sessions share is immutable or safe for concurrent use: the
+ * SymbolTable, which interns symbols without locking for symbols that exist
+ * already, the primitives of Builtins, the small integer cache and the
+ * HashCons table. The engine (Evaluator.setEngine) is chosen once for the
+ * process.
+ * An interpreter can be built on a library, another interpreter whose
+ * functions, typically loaded from source files at startup, are shared by
+ * every session built on it. The library must not evaluate anything once
+ * sessions use it. A session sees the functions of the library and can
+ * redefine them for itself, leaving the library unchanged.
+ * An evaluation can be stopped from another thread with cancel: it fails with
+ * an EvaluationError at its next call of a user function. As a program can
+ * only loop by calling functions, every evaluation stops soon after.
+ * In the parallel mode (see Parallel) an argument may be evaluated on another
+ * thread by an interpreter forked from this one, which shares its D-list and
+ * sees its variables. The calls started by FUTURE (see Futures) run in
+ * interpreters forked the same way, but with copies of the D-list and of the
+ * variables, as a future may outlive the call which started it. Cancelling
+ * this interpreter cancels its forks too, including the futures which outlive
+ * the evaluation, and clearCancel does not take that back: it only lets this
+ * interpreter evaluate again.
+ * The resources each top level evaluation may use can be limited with
+ * setLimits, see Limits. The forks of an evaluation share its budget.
+ * Sessions built on a library start with the limits of the library.
+ * @author: Pravar Mahajan
+ */
+public class Interpreter {
+
+    final AList aList;
+    final Memo memo = new Memo();
+    final DList functions;
+    final VM vm = new VM(this);
+
+    //A tail call made by compiled code, see Compiler.TAIL_CALL
+    FunctionDef pendingFunction;
+    SExp pendingArgs;
+
+    //Replaced by clearCancel; a fork keeps the one of the interpreter
+    //forking it as its parent
+    private volatile Cancellation cancellation;
+
+    private static final int CHECK_INTERVAL = 256;
+    private Limits limits = Limits.DEFAULT;
+    private Limits.Budget budget = Limits.NONE.start();
+    private int interval = CHECK_INTERVAL; //Calls from one check to the next
+    private int countdown = CHECK_INTERVAL; //Calls left until the next check
+    private long cells = 0; //Cons cells made since the last check
+
+    public Interpreter() {
+        aList = new AList();
+        functions = new DList(memo, null);
+        cancellation = new Cancellation(null);
+    }
+
+    /**
+     * Creates a session sharing the functions of the library, which memoizes
+     * the functions the library memoizes.
+     */
+    public Interpreter(Interpreter library) {
+        aList = new AList();
+        functions = new DList(memo, library.functions);
+        memo.enableLike(library.memo);
+        cancellation = new Cancellation(null);
+        limits = library.limits;
+    }
+
+    private Interpreter(Interpreter forking, AList aList, boolean future) {
+        this.aList = aList;
+        functions = future ? forking.functions.copy(memo) : forking.functions;
+        memo.enableLike(forking.memo);
+        cancellation = new Cancellation(forking.cancellation);
+        limits = forking.limits;
+        budget = forking.budget;
+        resetCountdown();
+    }
+
+    /**
+     * Creates an interpreter evaluating an argument for this one on another
+     * thread. It has a Memo cache of its own, while the D-list is shared,
+     * which is safe as nothing is defined while forks run. Called on the
+     * thread of this interpreter.
+     */
+    Interpreter fork() {
+        return new Interpreter(this, new AList(aList), false);
+    }
+
+    /**
+     * Creates an interpreter evaluating a future for this one. It sees the
+     * functions defined and the variables bound now; the variables are only
+     * copied if some function can refer to them.
+     */
+    Interpreter forkFuture() {
+        if(functions.hasFreeVariables())
+            return new Interpreter(this, aList.copy(), true);
+        AList variables = new AList();
+        variables.setMaxDepth(aList.getMaxDepth());
+        return new Interpreter(this, variables, true);
+    }
+
+    /**
+     * Evaluates a top level expression with the selected engine, within the
+     * limits of the interpreter.
+     */
+    public SExp evaluate(SExp sExp) throws EvaluationError {
+        budget = limits.start();
+        resetCountdown();
+        cells = 0;
+        aList.setMaxDepth(limits.getMaxDepth());
+        return Evaluator.evaluate(this, sExp);
+    }
+
+    /**
+     * Parses and evaluates the expressions in a string, which are separated
+     * as in a script read by SExpReader.
+     * @return the value of the last expression, or null if there is none
+     */
+    public SExp evaluate(String expressions) throws ParseError, EvaluationError {
+        SExpReader reader = new SExpReader(new StringReader(expressions));
+        SExp result = null;
+        try {
+            for(SExp sExp = reader.next(); sExp != null; sExp = reader.next())
+                result = evaluate(sExp);
+        }
+        catch(IOException e) {
+            throw new IllegalStateException(e); //A StringReader does not throw
+        }
+        return result;
+    }
+
+    /**
+     * Loads and evaluates a source file, see SourceLoader.
+     */
+    public SourceLoader.LoadResult load(Path file) throws IOException, ParseError {
+        return SourceLoader.load(this, file);
+    }
+
+    /**
+     * Makes the running evaluation fail at its next function call, and every
+     * evaluation after it until clearCancel is called. May be called from any
+     * thread.
+     */
+    public void cancel() {
+        cancellation.cancelled = true;
+    }
+
+    /**
+     * Lets the interpreter evaluate again after a cancel. The forks and
+     * futures started before stay cancelled.
+     */
+    public void clearCancel() {
+        cancellation = new Cancellation(cancellation.parent);
+    }
+
+    public boolean isCancelled() {
+        for(Cancellation c = cancellation; c != null; c = c.parent)
+            if(c.cancelled)
+                return true;
+        return false;
+    }
+
+    //Whether the evaluations of an interpreter are cancelled; those of a
+    //fork are also cancelled with the ones of the interpreter forking it
+    private static final class Cancellation {
+        final Cancellation parent;
+        volatile boolean cancelled = false;
+
+        Cancellation(Cancellation parent) {
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Sets the limits of the evaluations started from now on.
+     */
+    public void setLimits(Limits limits) {
+        this.limits = limits;
+    }
+
+    public Limits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Called on every call of a user function. Every 256 calls, or sooner
+     * when fewer steps are left, the calls and the cons cells made are
+     * charged to the budget of the evaluation, and a forked interpreter looks
+     * whether the interpreters it was forked from were cancelled.
+     * @throws EvaluationError if the evaluation was cancelled
+     * @throws LimitExceededError if it has exceeded one of its limits
+     */
+    void checkCall() throws EvaluationError {
+        if(cancellation.cancelled || --countdown < 0)
+            checkBudget();
+    }
+
+    /**
+     * Called every few milliseconds by a thread waiting for another one
+     * (see Parallel.join), which may be evaluating with this interpreter, so
+     * nothing is charged: only the cancellation and the budget as charged so
+     * far are looked at.
+     * @throws EvaluationError if the evaluation was cancelled
+     * @throws LimitExceededError if it has exceeded one of its limits
+     */
+    void checkWaiting() throws EvaluationError {
+        if(isCancelled())
+            throw new EvaluationError("Evaluation cancelled");
+        budget.charge(0, 0);
+    }
+
+    private void checkBudget() throws EvaluationError {
+        if(isCancelled())
+            throw new EvaluationError("Evaluation cancelled");
+        settleBudget();
+    }
+
+    /**
+     * Charges the calls and the cons cells made since the last check to the
+     * budget of the evaluation. A forked interpreter is settled when it
+     * starts and when it ends running, so its calls and cells are all
+     * charged.
+     * @throws LimitExceededError if the evaluation has exceeded one of its
+     * limits
+     */
+    void settleBudget() throws LimitExceededError {
+        int steps = interval - countdown;
+        long made = cells;
+        cells = 0;
+        budget.charge(steps, made);
+        resetCountdown();
+    }
+
+    /**
+     * Makes a cell for the CONS primitive, counted for the cell limit.
+     */
+    SExp cons(SExp car, SExp cdr) {
+        cells++;
+        return HashCons.cons(car, cdr);
+    }
+
+    private void resetCountdown() {
+        interval = Math.min(CHECK_INTERVAL, budget.stepsLeft());
+        countdown = interval;
+    }
+
+    public Memo getMemo() {
+        return memo;
+    }
+
+    /**
+     * @return true if calls of the function are looked up in the Memo cache:
+     * it is memoized and no function refers to free variables
+     */
+    boolean isMemoized(FunctionDef function) {
+        return memo.isEnabled(function) && !functions.hasFreeVariables();
+    }
+}
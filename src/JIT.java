@@ -0,0 +1,503 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+
+/**
+ * This class compiles hot user functions into JVM classes.
+ * Every call of a function run by the interpreter or the Compiler is counted
+ * in its FunctionDef. When the count reaches the threshold (1000 calls, set
+ * with -Dlisp.jit.threshold, 0 turns the JIT off) the body is translated to
+ * the bytecode of a class implementing JIT.Code, which is defined as a hidden
+ * class next to this one and used for every later call. The class file is
+ * written by hand (class ClassFileWriter), as the classfile API is not
+ * available on Java 17.
+ * The generated code does what the Compiler nodes do: parameters are read
+ * from their frame slot, primitives are called through their Builtin entry
+ * and calls to user functions look the function up by name on every call,
+ * so a redefinition with DEFUN takes effect immediately and the old class is
+ * simply dropped with its FunctionDef. Tail calls return Compiler.TAIL_CALL
+ * to the loop in Evaluator.invoke.
+ * If a function cannot be compiled, because the generated method would be
+ * too large or the class is rejected when it is defined, the function keeps
+ * running in the engine it was defined with.
+ * @author: Pravar Mahajan
+ */
+class JIT {
+
+    static final int THRESHOLD = Integer.getInteger("lisp.jit.threshold", 1000);
+
+    //Name of the generated classes; hidden classes get a unique suffix
+    private static final String CLASS_NAME = "JIT$Function";
+    private static final String SEXP = "LSExp;";
+    private static final String INTERPRETER = "LInterpreter;";
+
+    /**
+     * The body of a function compiled to a JVM class. It runs with the frame
+     * of the function already pushed on the A-list of the interpreter.
+     */
+    interface Code {
+        SExp run(Interpreter interpreter) throws EvaluationError;
+    }
+
+    private final FrameLayout layout;
+    private final ClassFileWriter writer = new ClassFileWriter();
+    private final List<Object> constants = new ArrayList<>();
+    private byte[] code = new byte[64];
+    private int length = 0;
+    private int stackDepth = 0;
+    private int maxStack = 0;
+
+    private JIT(FrameLayout layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Compiles the body of a function to a JVM class.
+     * @return the loaded code, or null if the function cannot be compiled
+     */
+    static Code compile(FunctionDef function) {
+        JIT jit = new JIT(function.getLayout());
+        try {
+            jit.compile(function.getBody(), true);
+            jit.emit(0xb0); //areturn
+            byte[] bytes = jit.generateClass();
+            MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(bytes, true);
+            return (Code) lookup.lookupClass()
+                    .getDeclaredConstructor(Object[].class)
+                    .newInstance((Object) jit.constants.toArray());
+        }
+        catch(ReflectiveOperationException | LinkageError
+                | IllegalArgumentException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    //Called by the generated code, which passes its interpreter last
+
+    static SExp local(int slot, Interpreter interpreter) {
+        return interpreter.aList.getLocal(slot);
+    }
+
+    static SExp lookup(SExp symbol, Interpreter interpreter) throws EvaluationError {
+        SExp value = interpreter.aList.getValue(symbol);
+        if(value == null)
+            throw new EvaluationError("unbound variable: "
+                    + symbol.getAtomAsString());
+        return value;
+    }
+
+    static SExp fail(String message) throws EvaluationError {
+        throw new EvaluationError(message);
+    }
+
+    static SExp cons(SExp car, SExp cdr) {
+        return new SExp(car, cdr);
+    }
+
+    static SExp call(SExp args, SExp name, Interpreter interpreter)
+            throws EvaluationError {
+        return Evaluator.invoke(interpreter, interpreter.functions.getFunction(name),
+                args);
+    }
+
+    static SExp tailCall(SExp args, SExp name, Interpreter interpreter)
+            throws EvaluationError {
+        interpreter.pendingFunction = interpreter.functions.getFunction(name);
+        interpreter.pendingArgs = args;
+        return Compiler.TAIL_CALL;
+    }
+
+    static SExp defun(SExp definition, Interpreter interpreter)
+            throws EvaluationError {
+        return Evaluator.defun(interpreter, definition);
+    }
+
+    //Code generation. Every expression leaves exactly one value on the
+    //operand stack; the value of the body is returned.
+
+    private void compile(SExp sExp, boolean tail) {
+        if(sExp.isAtom()) {
+            if(sExp.isIntegerAtom() || sExp.isTrue() || sExp.isNil())
+                loadConstant(sExp, "SExp");
+            else if(layout.slotOf(sExp) >= 0) {
+                pushInt(layout.slotOf(sExp));
+                loadInterpreter();
+                invokeStatic("JIT", "local", "(I" + INTERPRETER + ")" + SEXP, 2);
+            }
+            else {
+                loadConstant(sExp, "SExp");
+                loadInterpreter();
+                invokeStatic("JIT", "lookup", "(" + SEXP + INTERPRETER + ")" + SEXP, 2);
+            }
+            return;
+        }
+        SExp car = sExp.car();
+        SExp cdr = sExp.cdr();
+        if(!car.isSymbolicAtom())
+            emitFail(car.getDottedNotation() + " is not a function");
+        else if(car == SymbolTable.QUOTE) {
+            if(!cdr.isNil() && cdr.cdr().isNil())
+                loadConstant(cdr.car(), "SExp");
+            else if(cdr.isNil())
+                emitFail("Too few params for QUOTE");
+            else emitFail("Too many params for QUOTE");
+        }
+        else if(car == SymbolTable.COND) {
+            if(cdr.isNil())
+                emitFail("Too few params for COND");
+            else
+                compileCond(cdr, tail);
+        }
+        else if(car == SymbolTable.DEFUN) {
+            loadConstant(cdr, "SExp");
+            loadInterpreter();
+            invokeStatic("JIT", "defun", "(" + SEXP + INTERPRETER + ")" + SEXP, 2);
+        }
+        else if(cdr.isAtom() && !cdr.isNil())
+            emitFail("Error evaluating " + sExp.getDottedNotation());
+        else
+            compileCall(car, cdr, tail);
+    }
+
+    private void compileCond(SExp clauses, boolean tail) {
+        List<Integer> exits = new ArrayList<>();
+        for(; !clauses.isAtom(); clauses = clauses.cdr()) {
+            SExp clause = clauses.car();
+            if(clause.isAtom()) {
+                emitFail(clause.getAtomAsString() + " should be a list");
+                exits.add(jump(0xa7)); //goto
+                stackDepth--;
+                break;
+            }
+            if(clause.car() == SymbolTable.QUOTE) {
+                emitFail("QUOTE has no value");
+                exits.add(jump(0xa7));
+                stackDepth--;
+                break;
+            }
+            compile(clause.car(), false);
+            invokeVirtual("SExp", "isNil", "()Z", 0);
+            int next = jump(0x9a); //ifne
+            stackDepth--;
+            if(clause.cdr().isAtom())
+                emitFail("COND branch has no value");
+            else
+                compile(clause.cdr().car(), tail);
+            exits.add(jump(0xa7));
+            stackDepth--;
+            patch(next);
+        }
+        emitFail("No cases matched!");
+        for(int exit : exits)
+            patch(exit);
+    }
+
+    private void compileCall(SExp func, SExp args, boolean tail) {
+        Builtin builtin = Builtins.get(func);
+        int argc = 0;
+        SExp node;
+        for(node = args; !node.isAtom(); node = node.cdr())
+            argc++;
+        boolean proper = node.isNil();
+        if(!proper)
+            argc++; //The failure raised in place of the last argument
+        if(builtin != null && builtin.getUnary() != null && argc == 1 && proper) {
+            loadConstant(builtin.getUnary(), "Builtin$Unary");
+            compile(args.car(), false);
+            invokeInterface("Builtin$Unary", "apply",
+                    "(" + SEXP + ")" + SEXP, 1);
+            return;
+        }
+        if(builtin != null && builtin.getBinary() != null && argc == 2 && proper) {
+            loadConstant(builtin.getBinary(), "Builtin$Binary");
+            compile(args.car(), false);
+            compile(args.cdr().car(), false);
+            loadInterpreter();
+            invokeInterface("Builtin$Binary", "apply",
+                    "(" + SEXP + SEXP + INTERPRETER + ")" + SEXP, 3);
+            return;
+        }
+        if(builtin != null)
+            loadConstant(builtin, "Builtin");
+        for(node = args; !node.isAtom(); node = node.cdr())
+            compile(node.car(), false);
+        if(!proper) //Fails once the arguments before it are evaluated
+            emitFail("Error evaluating " + node.getDottedNotation());
+        //Build the argument list from the values on the stack, last first
+        emit(0xb2); //getstatic
+        emitShort(writer.fieldRef("SymbolTable", "NIL", SEXP));
+        push(1);
+        for(int i = 0; i < argc; i++)
+            invokeStatic("JIT", "cons", "(" + SEXP + SEXP + ")" + SEXP, 2);
+        if(builtin != null) {
+            boolean checked = builtin.getArity() == Builtins.VARIADIC
+                    || builtin.getArity() == argc;
+            loadInterpreter();
+            invokeVirtual("Builtin", checked ? "applyChecked" : "apply",
+                    "(" + SEXP + INTERPRETER + ")" + SEXP, 2);
+        }
+        else {
+            loadConstant(func, "SExp");
+            loadInterpreter();
+            invokeStatic("JIT", tail ? "tailCall" : "call",
+                    "(" + SEXP + SEXP + INTERPRETER + ")" + SEXP, 3);
+        }
+    }
+
+    //Emits a call raising an EvaluationError, counted as pushing a value
+    private void emitFail(String message) {
+        loadConstant(message, "java/lang/String");
+        invokeStatic("JIT", "fail", "(Ljava/lang/String;)" + SEXP, 1);
+    }
+
+    //Loads constants[index] and casts it to the given class
+    private void loadConstant(Object value, String className) {
+        int index = -1;
+        for(int i = 0; i < constants.size(); i++)
+            if(constants.get(i) == value)
+                index = i;
+        if(index < 0) {
+            index = constants.size();
+            constants.add(value);
+        }
+        emit(0x2a); //aload_0
+        emit(0xb4); //getfield
+        emitShort(writer.fieldRef(CLASS_NAME, "constants", "[Ljava/lang/Object;"));
+        push(1);
+        pushInt(index);
+        emit(0x32); //aaload
+        stackDepth--;
+        emit(0xc0); //checkcast
+        emitShort(writer.classRef(className));
+    }
+
+    //The interpreter is the argument of run
+    private void loadInterpreter() {
+        emit(0x2b); //aload_1
+        push(1);
+    }
+
+    private void pushInt(int value) {
+        if(value <= 5)
+            emit(0x03 + value); //iconst_<n>
+        else if(value <= Byte.MAX_VALUE) {
+            emit(0x10); //bipush
+            emit(value);
+        }
+        else if(value <= Short.MAX_VALUE) {
+            emit(0x11); //sipush
+            emitShort(value);
+        }
+        else throw new IllegalStateException("Too many constants");
+        push(1);
+    }
+
+    private void invokeStatic(String owner, String name, String type, int args) {
+        emit(0xb8);
+        emitShort(writer.methodRef(owner, name, type, false));
+        stackDepth -= args;
+        push(1);
+    }
+
+    private void invokeVirtual(String owner, String name, String type, int args) {
+        emit(0xb6);
+        emitShort(writer.methodRef(owner, name, type, false));
+        stackDepth -= args;
+    }
+
+    private void invokeInterface(String owner, String name, String type, int args) {
+        emit(0xb9);
+        emitShort(writer.methodRef(owner, name, type, true));
+        emit(args + 1);
+        emit(0);
+        stackDepth -= args;
+    }
+
+    //Emits a branch and returns its position, to be patched later
+    private int jump(int opcode) {
+        int position = length;
+        emit(opcode);
+        emitShort(0);
+        return position;
+    }
+
+    //Makes the branch at the given position jump to the current position
+    private void patch(int position) {
+        int offset = length - position;
+        if(offset > Short.MAX_VALUE)
+            throw new IllegalStateException("Method too large");
+        code[position + 1] = (byte) (offset >> 8);
+        code[position + 2] = (byte) offset;
+    }
+
+    private void push(int count) {
+        stackDepth += count;
+        maxStack = Math.max(maxStack, stackDepth);
+    }
+
+    private void emit(int b) {
+        if(length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+        code[length++] = (byte) b;
+    }
+
+    private void emitShort(int value) {
+        emit(value >> 8);
+        emit(value);
+    }
+
+    private byte[] generateClass() {
+        if(length > 65535)
+            throw new IllegalStateException("Method too large");
+        //Constructor storing the constants
+        ByteArrayOutputStream init = new ByteArrayOutputStream();
+        init.write(0x2a); //aload_0
+        init.write(0xb7); //invokespecial
+        int objectInit = writer.methodRef("java/lang/Object", "<init>", "()V", false);
+        init.write(objectInit >> 8);
+        init.write(objectInit);
+        init.write(0x2a);
+        init.write(0x2b); //aload_1
+        init.write(0xb5); //putfield
+        int field = writer.fieldRef(CLASS_NAME, "constants", "[Ljava/lang/Object;");
+        init.write(field >> 8);
+        init.write(field);
+        init.write(0xb1); //return
+        writer.addMethod(0x0001, "<init>", "([Ljava/lang/Object;)V", 2, 2,
+                init.toByteArray());
+        writer.addMethod(0x0001, "run", "(" + INTERPRETER + ")" + SEXP, maxStack, 2,
+                Arrays.copyOf(code, length));
+        return writer.toByteArray(CLASS_NAME, "java/lang/Object", "JIT$Code",
+                "constants", "[Ljava/lang/Object;");
+    }
+}
+
+/**
+ * Writes a minimal class file for the JIT: one final instance field and the
+ * methods added with addMethod. Version 49 class files are verified by type
+ * inference, so the generated code needs no stack map frames.
+ */
+class ClassFileWriter {
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolData = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+    private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    private final DataOutputStream methodData = new DataOutputStream(methods);
+    private int methodCount = 0;
+
+    int utf8(String value) {
+        return entry("U" + value, 1, out -> out.writeUTF(value));
+    }
+
+    int classRef(String name) {
+        int nameIndex = utf8(name);
+        return entry("C" + name, 7, out -> out.writeShort(nameIndex));
+    }
+
+    int fieldRef(String owner, String name, String type) {
+        return memberRef(9, owner, name, type);
+    }
+
+    int methodRef(String owner, String name, String type, boolean isInterface) {
+        return memberRef(isInterface ? 11 : 10, owner, name, type);
+    }
+
+    private int memberRef(int tag, String owner, String name, String type) {
+        int ownerIndex = classRef(owner);
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(type);
+        int nameAndType = entry("N" + name + ":" + type, 12, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(typeIndex);
+        });
+        return entry(tag + owner + "." + name + ":" + type, tag, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(nameAndType);
+        });
+    }
+
+    private interface EntryWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int entry(String key, int tag, EntryWriter contents) {
+        Integer index = entries.get(key);
+        if(index != null)
+            return index;
+        if(poolCount == 65535)
+            throw new IllegalStateException("Constant pool too large");
+        try {
+            poolData.writeByte(tag);
+            contents.write(poolData);
+        }
+        catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    void addMethod(int access, String name, String type, int maxStack,
+                   int maxLocals, byte[] code) {
+        int nameIndex = utf8(name);
+        int typeIndex = utf8(type);
+        int codeIndex = utf8("Code");
+        try {
+            methodData.writeShort(access);
+            methodData.writeShort(nameIndex);
+            methodData.writeShort(typeIndex);
+            methodData.writeShort(1); //Code attribute
+            methodData.writeShort(codeIndex);
+            methodData.writeInt(12 + code.length);
+            methodData.writeShort(maxStack);
+            methodData.writeShort(maxLocals);
+            methodData.writeInt(code.length);
+            methodData.write(code);
+            methodData.writeShort(0); //Exception table
+            methodData.writeShort(0); //Attributes
+        }
+        catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray(String name, String superName, String interfaceName,
+                       String fieldName, String fieldType) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int interfaceClass = classRef(interfaceName);
+        int fieldNameIndex = utf8(fieldName);
+        int fieldTypeIndex = utf8(fieldType);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); //Minor version
+            out.writeShort(49); //Major version, Java 5
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(0x0031); //ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(interfaceClass);
+            out.writeShort(1); //Fields
+            out.writeShort(0x0012); //ACC_PRIVATE | ACC_FINAL
+            out.writeShort(fieldNameIndex);
+            out.writeShort(fieldTypeIndex);
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            out.writeShort(0); //Class attributes
+        }
+        catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,143 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the limits on the resources one evaluation may use: the
+ * number of steps, taken as calls of user functions, the number of cons
+ * cells made by CONS, the depth of the recursion, counted in frames of the
+ * A-list, and the wall clock time. Zero means no limit. Each top level
+ * expression an Interpreter evaluates starts with a fresh Budget, which the
+ * interpreters forked for its arguments and futures share, so the limits
+ * hold for the whole evaluation whatever threads it runs on. A budget which
+ * runs out makes the evaluation fail with a LimitExceededError.
+ * Only the depth is checked on every call, by AList.pushFrame. The others are
+ * checked by Interpreter.checkCall every 256 calls, or sooner when fewer
+ * steps are left, so they cost the hot path of the engines nothing but a
+ * counter. As a program can only loop by calling functions, an evaluation
+ * stops soon after it exceeds a limit. Each interpreter counts the cells its
+ * CONS calls make (see Interpreter.cons) and charges them with its steps.
+ * The default limits are read from lisp.limit.steps, lisp.limit.cells,
+ * lisp.limit.depth and lisp.limit.millis.
+ * @author: Pravar Mahajan
+ */
+public final class Limits {
+
+    public static final Limits NONE = new Limits(0, 0, 0, 0);
+
+    static final Limits DEFAULT = new Limits(Long.getLong("lisp.limit.steps", 0),
+            Long.getLong("lisp.limit.cells", 0),
+            Integer.getInteger("lisp.limit.depth", 0),
+            Long.getLong("lisp.limit.millis", 0));
+
+    /**
+     * The resources an evaluation is limited in.
+     */
+    public enum Resource {
+        STEPS, CELLS, DEPTH, TIME
+    }
+
+    private final long maxSteps;
+    private final long maxCells;
+    private final int maxDepth;
+    private final long maxMillis;
+
+    /**
+     * @param maxSteps: calls of user functions, or 0
+     * @param maxCells: cons cells made, or 0
+     * @param maxDepth: frames of nested calls, or 0
+     * @param maxMillis: milliseconds of wall clock time, or 0
+     */
+    public Limits(long maxSteps, long maxCells, int maxDepth, long maxMillis) {
+        if(maxSteps < 0 || maxCells < 0 || maxDepth < 0 || maxMillis < 0)
+            throw new IllegalArgumentException("Negative limit");
+        this.maxSteps = maxSteps;
+        this.maxCells = maxCells;
+        this.maxDepth = maxDepth;
+        this.maxMillis = maxMillis;
+    }
+
+    public long getMaxSteps() {
+        return maxSteps;
+    }
+
+    public long getMaxCells() {
+        return maxCells;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    /**
+     * @return a budget for an evaluation starting now
+     */
+    Budget start() {
+        return new Budget(this);
+    }
+
+    /**
+     * The resources used so far by one evaluation, charged by the
+     * interpreters taking part in it from any thread.
+     */
+    static final class Budget {
+        final Limits limits;
+        private final long deadline; //System.nanoTime, if there is a time limit
+        private final AtomicLong steps = new AtomicLong();
+        private final AtomicLong cells = new AtomicLong();
+
+        private Budget(Limits limits) {
+            this.limits = limits;
+            this.deadline = System.nanoTime() + limits.maxMillis * 1000000;
+        }
+
+        /**
+         * @return the number of steps left, at most Integer.MAX_VALUE
+         */
+        int stepsLeft() {
+            if(limits.maxSteps == 0)
+                return Integer.MAX_VALUE;
+            return (int) Math.max(0, Math.min(Integer.MAX_VALUE,
+                    limits.maxSteps - steps.get()));
+        }
+
+        /**
+         * Charges the steps taken and the cells made since the last charge
+         * of an interpreter, and checks the clock.
+         * @throws LimitExceededError if a limit has been exceeded
+         */
+        void charge(int stepsTaken, long cellsMade) throws LimitExceededError {
+            if(limits.maxSteps > 0 && steps.addAndGet(stepsTaken) > limits.maxSteps)
+                throw new LimitExceededError(Resource.STEPS, "Step limit of "
+                        + limits.maxSteps + " exceeded");
+            if(limits.maxCells > 0 && cells.addAndGet(cellsMade) > limits.maxCells)
+                throw new LimitExceededError(Resource.CELLS, "Cell limit of "
+                        + limits.maxCells + " exceeded");
+            if(limits.maxMillis > 0 && System.nanoTime() - deadline > 0)
+                throw new LimitExceededError(Resource.TIME, "Time limit of "
+                        + limits.maxMillis + " ms exceeded");
+        }
+    }
+}
+
+/**
+ * The error an evaluation fails with when it exceeds one of its Limits.
+ */
+class LimitExceededError extends EvaluationError {
+
+    private final Limits.Resource resource;
+
+    public LimitExceededError(Limits.Resource resource, String error) {
+        super(error);
+        this.resource = resource;
+    }
+
+    /**
+     * @return the resource which ran out
+     */
+    public Limits.Resource getResource() {
+        return resource;
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Generates load for a Server on this machine. Each of the given number of
+ * connections sends the expression the given number of times, one request at
+ * a time, and measures the time until its answer arrives. At the end the
+ * total throughput, the latency percentiles and the number of answers which
+ * were errors are reported.
+ * Run with: java LoadClient port connections requests expression
+ * for example java LoadClient 4000 16 1000 "(FIB 15)"
+ * @author: Pravar Mahajan
+ */
+public class LoadClient {
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 4) {
+            System.err.println("Usage: java LoadClient port connections"
+                    + " requests expression");
+            System.exit(Batch.INPUT_ERROR);
+        }
+        int port = Integer.parseInt(args[0]);
+        int connections = Integer.parseInt(args[1]);
+        int requests = Integer.parseInt(args[2]);
+        String expression = args[3];
+
+        ExecutorService pool = Executors.newFixedThreadPool(connections);
+        List<Future<long[]>> results = new ArrayList<>();
+        long[] errors = new long[connections];
+        long startTime = System.nanoTime();
+        for(int c = 0; c < connections; c++) {
+            int connection = c;
+            results.add(pool.submit(() -> run(port, requests, expression,
+                    errors, connection)));
+        }
+        long[] latencies = new long[connections * requests];
+        int count = 0;
+        for(Future<long[]> result : results) {
+            long[] times = result.get();
+            System.arraycopy(times, 0, latencies, count, times.length);
+            count += times.length;
+        }
+        long nanos = System.nanoTime() - startTime;
+        pool.shutdown();
+
+        Arrays.sort(latencies);
+        long failed = 0;
+        for(long error : errors)
+            failed += error;
+        System.out.printf("%d requests on %d connections in %.1f ms:"
+                        + " %.0f requests/s%n", count, connections, nanos / 1e6,
+                count / (nanos / 1e9));
+        System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms,"
+                        + " %d errors%n", percentile(latencies, 50) / 1e6,
+                percentile(latencies, 99) / 1e6,
+                latencies[latencies.length - 1] / 1e6, failed);
+    }
+
+    //Sends the requests of one connection, returning their latencies
+    private static long[] run(int port, int requests, String expression,
+                              long[] errors, int connection) throws IOException {
+        long[] latencies = new long[requests];
+        try(Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            Writer output = new BufferedWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader input = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+            for(int i = 0; i < requests; i++) {
+                long start = System.nanoTime();
+                output.write(expression);
+                output.write('\n');
+                output.flush();
+                String answer = input.readLine();
+                latencies[i] = System.nanoTime() - start;
+                if(answer == null)
+                    throw new EOFException("Connection closed by the server");
+                if(!answer.startsWith(">"))
+                    errors[connection]++;
+            }
+        }
+        return latencies;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        int index = (int) Math.ceil(sorted.length * percent / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -1,24 +1,131 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
 /**
  * This is the main class of the lisp interpreter.
  * Takes input lisp expression from user, 
  * creates the s-expression tree internally
  * and prints s-expression in the dot notation.
  * Then it evaluates the parsed s-expression and displays the output.
+ * Source files given with --load are evaluated before the prompt starts.
+ * The engine executing functions can be chosen with --engine, functions can
+ * be memoized with --memo and arguments evaluated in parallel with
+ * --parallel. Expressions are printed in dot notation, or in list notation
+ * with --list-notation, and --print-depth and --print-length limit how much
+ * of large expressions is printed.
+ * With --batch or --script the standard input or a script is run by Batch
+ * instead, without the banner and prompts, and the program exits with the
+ * status of the run. With --serve the functions loaded are served to TCP
+ * clients by a Server instead. The steps, cells, depth and time each
+ * expression may use can be limited with --max-steps, --max-cells,
+ * --max-depth and --max-time, see Limits.
  * @author: Pravar Mahajan
  */
 public class Main {
+    private static boolean memoized = false; //Set by --memo
+    private static Printer.Notation notation = Printer.Notation.DOT;
+    private static int printDepth = Integer.MAX_VALUE;
+    private static int printLength = Integer.MAX_VALUE;
+    private static boolean batch = false; //Set by --batch and --script
+    private static String script = null; //File given with --script
+    private static boolean finalOnly = false;
+    private static int servePort = -1; //Set by --serve
+    private static int maxConnections = 256;
+    private static long timeoutMillis = 5000;
+    private static final Interpreter interpreter = new Interpreter();
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Options:",
+            "  --load <file>           evaluate a file before the prompt",
+            "  --engine <name>         select how functions are executed;",
+            "                          comes before any --load",
+            "  --memo <name>|all       memoize a function, or every function",
+            "  --hash-cons             share identical list structure",
+            "  --parallel              evaluate arguments in parallel; comes",
+            "                          before any --load",
+            "  --list-notation         print lists as (A B C)",
+            "  --print-depth <n>       print ... for lists nested deeper",
+            "  --print-length <n>      print ... for lists longer",
+            "  --batch                 run the standard input without prompts",
+            "  --script <file>         run a file without prompts",
+            "  --final-only            print only the last result of a run",
+            "  --serve <port>          serve the loaded functions over TCP",
+            "  --max-connections <n>   clients served at once",
+            "  --timeout <ms>          time each served expression may take",
+            "  --max-steps <n>         limit later evaluations, 0 for none",
+            "  --max-cells <n>         the same for cons cells",
+            "  --max-depth <n>         the same for nested calls",
+            "  --max-time <ms>         the same for time");
+
     public static void main(String[] args){
-        System.out.println("**LISP INTERPRETER** v1.1");
+        batch = Arrays.asList(args).contains("--batch")
+                || Arrays.asList(args).contains("--script");
+        if(!batch && !Arrays.asList(args).contains("--serve"))
+            System.out.println("**LISP INTERPRETER** v1.1");
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--load") && i + 1 < args.length)
+                loadFile(args[++i]);
+            else if(args[i].equals("--engine") && i + 1 < args.length)
+                selectEngine(args[++i]);
+            else if(args[i].equals("--memo") && i + 1 < args.length)
+                memoize(args[++i]);
+            else if(args[i].equals("--hash-cons"))
+                HashCons.enable();
+            else if(args[i].equals("--parallel"))
+                Parallel.enable();
+            else if(args[i].equals("--list-notation"))
+                notation = Printer.Notation.LIST;
+            else if(args[i].equals("--print-depth") && i + 1 < args.length)
+                printDepth = parseLimit(args[i], args[++i], printDepth);
+            else if(args[i].equals("--print-length") && i + 1 < args.length)
+                printLength = parseLimit(args[i], args[++i], printLength);
+            else if(args[i].equals("--batch"))
+                continue;
+            else if(args[i].equals("--script") && i + 1 < args.length)
+                script = args[++i];
+            else if(args[i].equals("--final-only"))
+                finalOnly = true;
+            else if(args[i].equals("--serve") && i + 1 < args.length)
+                servePort = parseLimit(args[i], args[++i], servePort);
+            else if(args[i].equals("--max-connections") && i + 1 < args.length)
+                maxConnections = parseLimit(args[i], args[++i], maxConnections);
+            else if(args[i].equals("--timeout") && i + 1 < args.length)
+                timeoutMillis = parseLimit(args[i], args[++i], timeoutMillis);
+            else if(args[i].startsWith("--max-") && i + 1 < args.length
+                    && limit(args[i], args[i + 1]))
+                i++;
+            else {
+                System.err.println("Unknown option " + args[i]);
+                System.err.println(USAGE);
+            }
+        }
+        Printer printer = new Printer(notation, printDepth, printLength);
+        if(batch) {
+            int status = Batch.run(interpreter, script, printer, finalOnly);
+            if(memoized)
+                System.err.println(interpreter.getMemo().statistics());
+            System.exit(status);
+        }
+        if(servePort >= 0) {
+            serve();
+            return;
+        }
         IOHandler io = new IOHandler();
+        io.setPrinter(printer);
+        String notationHeader = notation == Printer.Notation.DOT
+                ? "dot notation:" : "list notation:";
+        Parser parser = new Parser();
         String inputExpressions;
         while(true){
 
             if(io.getExitSignal()) {
+                if(memoized)
+                    System.out.println(interpreter.getMemo().statistics());
                 System.out.println("Bye!");
                 break;
             }
 
-            Parser parser = new Parser();
             inputExpressions = io.inputExpression();
 
             try {
@@ -26,9 +133,9 @@ public class Main {
                     continue;
                 SExp parsedExpression =
                         parser.getParsedSExpressions(inputExpressions);
-                System.out.println("dot notation:");
+                System.out.println(notationHeader);
                 io.printSExpression(parsedExpression); //Output the sexp tree
-                SExp outputExpression = Evaluator.eval(parsedExpression);
+                SExp outputExpression = interpreter.evaluate(parsedExpression);
                 System.out.println("evaluation output:");
                 io.printSExpression(outputExpression);
 
@@ -39,7 +146,104 @@ public class Main {
             catch(EvaluationError err) {
                 System.err.println(err.getMessage());
             }
+            catch(StackOverflowError err) {
+                System.err.println("Stack overflow, recursion is too deep");
+            }
             
         }
     }
+
+    //Serves the interpreter, with the loaded functions as the library, until
+    //the process is stopped
+    private static void serve() {
+        try(Server server = new Server(servePort, interpreter, maxConnections,
+                timeoutMillis)) {
+            System.out.println("Listening on port " + server.getPort());
+            server.run();
+        }
+        catch(IOException err) {
+            System.err.println("Cannot serve on port " + servePort + ": "
+                    + err.getMessage());
+            System.exit(Batch.INPUT_ERROR);
+        }
+    }
+
+    //Reads the non negative value of an option, keeping the current one if
+    //the value is invalid
+    private static long parseLimit(String option, String limit, long current) {
+        try {
+            long value = Long.parseLong(limit);
+            if(value >= 0)
+                return value;
+        }
+        catch(NumberFormatException e) {
+            //Reported below
+        }
+        System.err.println("Invalid value for " + option + ": " + limit);
+        return current;
+    }
+
+    private static int parseLimit(String option, String limit, int current) {
+        long value = parseLimit(option, limit, (long) current);
+        if(value <= Integer.MAX_VALUE)
+            return (int) value;
+        System.err.println("Invalid value for " + option + ": " + limit);
+        return current;
+    }
+
+    //Sets one of the limits of the interpreter, see Limits
+    private static boolean limit(String option, String value) {
+        Limits limits = interpreter.getLimits();
+        long steps = limits.getMaxSteps();
+        long cells = limits.getMaxCells();
+        int depth = limits.getMaxDepth();
+        long millis = limits.getMaxMillis();
+        if(option.equals("--max-steps"))
+            steps = parseLimit(option, value, steps);
+        else if(option.equals("--max-cells"))
+            cells = parseLimit(option, value, cells);
+        else if(option.equals("--max-depth"))
+            depth = parseLimit(option, value, depth);
+        else if(option.equals("--max-time"))
+            millis = parseLimit(option, value, millis);
+        else
+            return false;
+        interpreter.setLimits(new Limits(steps, cells, depth, millis));
+        return true;
+    }
+
+    private static void memoize(String name) {
+        memoized = true;
+        if(name.equalsIgnoreCase("all"))
+            interpreter.getMemo().enableAll();
+        else
+            interpreter.getMemo().enable(
+                    SymbolTable.getSExpForAtom(name.toUpperCase()));
+    }
+
+    private static void selectEngine(String name) {
+        try {
+            Evaluator.setEngine(Evaluator.Engine.valueOf(name.toUpperCase()));
+        }
+        catch(IllegalArgumentException e) {
+            System.err.println("Unknown engine " + name
+                    + ", expected interpreter, compiler or vm");
+        }
+    }
+
+    private static void loadFile(String fileName) {
+        try {
+            String result = interpreter.load(Paths.get(fileName)).toString();
+            if(batch)
+                System.err.println(result); //Keeps the output to results
+            else
+                System.out.println(result);
+        }
+        catch(IOException err) {
+            System.err.println("Cannot load " + fileName + ": " + err.getMessage());
+        }
+        catch(ParseError err) {
+            System.err.println(fileName + ": " + err.getMessage());
+        }
+    }
 }
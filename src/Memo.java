@@ -0,0 +1,165 @@
+import java.util.*;
+
+/**
+ * This class memoizes calls of user functions.
+ * Every Interpreter has a Memo of its own, as the functions it memoizes are
+ * those of its D-list. Memoization is off by default. It is turned on for
+ * single functions with enable, or the --memo option, or for every function
+ * with enableAll or -Dlisp.memo=all. The result of a call is cached under
+ * the function and the structure of its arguments (see SExp.structuralHash),
+ * so a later call with equal arguments returns the cached result without
+ * evaluating the body.
+ * Calls which raise an error are not cached.
+ * The cache holds at most 10000 results (-Dlisp.memo.size) and drops the
+ * least recently used one when it is full.
+ * Only pure functions should be memoized. Since variables are scoped
+ * dynamically, the result of a call can depend on more than its arguments
+ * as soon as a function refers to free variables, so nothing is memoized
+ * while such a function is defined (see Interpreter.isMemoized). Redefining
+ * a function with DEFUN clears the whole cache, as memoized functions
+ * calling it may return different results from then on.
+ * @author: Pravar Mahajan
+ */
+public class Memo {
+
+    private static final int MAX_ENTRIES = Integer.getInteger("lisp.memo.size", 10000);
+
+    private boolean enabled = false; //Set if any function is memoized
+    private boolean all = false;
+    private final Set<SExp> names =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private final Map<Key, SExp> cache =
+            new LinkedHashMap<Key, SExp>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, SExp> eldest) {
+            if(size() <= MAX_ENTRIES)
+                return false;
+            evictions++;
+            return true;
+        }
+    };
+
+    Memo() {
+        if("all".equalsIgnoreCase(System.getProperty("lisp.memo")))
+            enableAll();
+    }
+
+    /**
+     * Memoizes the function with the given name, including later
+     * redefinitions of it.
+     */
+    public void enable(SExp name) {
+        names.add(name);
+        enabled = true;
+    }
+
+    /**
+     * Memoizes the functions the other Memo memoizes, for a session built on
+     * a library.
+     */
+    void enableLike(Memo other) {
+        names.addAll(other.names);
+        all |= other.all;
+        enabled |= other.enabled;
+    }
+
+    /**
+     * Memoizes every user function.
+     */
+    public void enableAll() {
+        all = true;
+        enabled = true;
+    }
+
+    /**
+     * @return true if calls of the function are to be memoized, as long as
+     * no function refers to free variables
+     */
+    boolean isEnabled(FunctionDef function) {
+        return enabled && (all || names.contains(function.getName()));
+    }
+
+    /**
+     * @return the cached result of the call, or null if it is not cached
+     */
+    SExp get(Key key) {
+        SExp result = cache.get(key);
+        if(result != null)
+            hits++;
+        else
+            misses++;
+        return result;
+    }
+
+    /**
+     * Caches the result under the key, unless it is null.
+     * @return the result
+     */
+    SExp store(Key key, SExp result) {
+        if(key != null)
+            cache.put(key, result);
+        return result;
+    }
+
+    /**
+     * Drops every cached result. Called when a function is redefined.
+     */
+    void invalidate() {
+        cache.clear();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    String statistics() {
+        return "memo: " + hits + " hits, " + misses + " misses, "
+                + evictions + " evictions, " + size() + " cached";
+    }
+
+    /**
+     * A call: the function and its evaluated arguments.
+     */
+    static final class Key {
+        private final FunctionDef function;
+        private final SExp args;
+        private final int hash;
+
+        Key(FunctionDef function, SExp args) {
+            this.function = function;
+            this.args = args;
+            this.hash = 31 * System.identityHashCode(function) + args.structuralHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if(!(other instanceof Key))
+                return false;
+            Key key = (Key) other;
+            return function == key.function && hash == key.hash
+                    && args.sameStructure(key.args);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class implements the optional parallel evaluation of arguments.
+ * When it is enabled, with -Dlisp.parallel=true, --parallel or enable, the
+ * arguments of a call are evaluated at the same time when at least two of
+ * them call user functions, directly or through primitives like PMAP. Those
+ * are the only arguments whose cost is not bounded by their size, so they
+ * are the ones worth a task of their own: the first of them is evaluated by
+ * the calling thread together with the cheap arguments, the others are
+ * forked to a ForkJoinPool, whose idle threads steal them. Every forked
+ * argument is evaluated by an Interpreter forked from the calling one, which
+ * sees the same variables and functions. No more tasks are forked while the
+ * pool has more than lisp.parallel.surplus tasks queued beyond what its
+ * threads can take, so recursive functions fork near the root of their
+ * recursion and run sequentially below it. The pool also runs FUTURE and
+ * PMAP (see Futures).
+ * The result is the one of the sequential evaluation. Forking needs the
+ * arguments to be free of side effects, so calls whose arguments contain a
+ * DEFUN, and every call while a defined function contains one, are evaluated
+ * sequentially. If arguments fail, the error of the leftmost is raised, as
+ * the sequential evaluation would stop there. The arguments to its right are
+ * cancelled, and all forks have ended before the error is raised.
+ * A thread waiting for the pool looks every WAIT_MILLIS whether its
+ * evaluation was cancelled or ran out of its budget, so a pool kept busy by
+ * other evaluations cannot make it wait for ever.
+ * Arguments are evaluated in parallel by the INTERPRETER and COMPILER engines;
+ * the JIT is off in the parallel mode and the VM evaluates sequentially.
+ * Parallel evaluation should be enabled before functions are defined, as
+ * the COMPILER decides which calls may fork when it compiles them. Only
+ * primitives without side effects may be registered in the parallel mode.
+ * @author: Pravar Mahajan
+ */
+public class Parallel {
+
+    private static volatile boolean enabled = Boolean.getBoolean("lisp.parallel");
+
+    private static final int SURPLUS = Integer.getInteger("lisp.parallel.surplus", 0);
+    private static final int WAIT_MILLIS = 10;
+    private static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger(
+            "lisp.parallel.threads", Runtime.getRuntime().availableProcessors()));
+
+    private Parallel() {}
+
+    /**
+     * The arguments of a call, evaluated one at a time by index.
+     */
+    interface Arguments {
+        SExp evaluate(Interpreter interpreter, int index) throws EvaluationError;
+    }
+
+    /**
+     * Evaluates the arguments of calls in parallel from now on.
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the number of threads of the pool
+     */
+    static int getThreads() {
+        return POOL.getParallelism();
+    }
+
+    /**
+     * @param args: the argument expressions of a call
+     * @return true if the arguments may be evaluated in parallel: at least
+     * two of them call user functions and none contains a DEFUN
+     */
+    static boolean isForkable(SExp args) {
+        int costly = 0;
+        for(; !args.isAtom(); args = args.cdr()) {
+            int cost = cost(args.car());
+            if(cost == UNSAFE)
+                return false;
+            if(cost == COSTLY)
+                costly++;
+        }
+        return costly >= 2 && args.isNil();
+    }
+
+    private static final int CHEAP = 0, COSTLY = 1, UNSAFE = 2;
+
+    //Classifies an expression by the calls it makes
+    private static int cost(SExp expression) {
+        if(expression.isAtom())
+            return CHEAP;
+        SExp func = expression.car();
+        if(func == SymbolTable.QUOTE)
+            return CHEAP;
+        if(func == SymbolTable.DEFUN)
+            return UNSAFE;
+        Builtin builtin = Builtins.get(func);
+        int cost = func != SymbolTable.COND && func.isSymbolicAtom()
+                && (builtin == null || builtin.usesInterpreter()) ? COSTLY : CHEAP;
+        for(SExp node = expression.cdr(); !node.isAtom(); node = node.cdr()) {
+            if(func == SymbolTable.COND) {
+                for(SExp part = node.car(); !part.isAtom(); part = part.cdr())
+                    cost = Math.max(cost, cost(part.car()));
+            }
+            else
+                cost = Math.max(cost, cost(node.car()));
+        }
+        return cost;
+    }
+
+    /**
+     * @return true if a call of the interpreter may fork its arguments now
+     */
+    static boolean mayFork(Interpreter interpreter) {
+        if(interpreter.functions.definesFunctions())
+            return false;
+        return ForkJoinTask.getPool() != POOL
+                || ForkJoinTask.getSurplusQueuedTaskCount() <= SURPLUS;
+    }
+
+    /**
+     * Evaluates arguments in parallel, see above. A thread outside the pool
+     * hands the call to the pool and waits for it, so the calls below it
+     * fork between the threads of the pool only. If the evaluation is
+     * cancelled or runs out of its budget before the pool has started the
+     * call, the call is dropped; once it has started, the call evaluates with
+     * the interpreter, so it is waited for until it has stopped as well.
+     * @param interpreter: the interpreter making the call
+     * @param args: the argument expressions, to find the costly ones
+     * @param arguments: evaluates the argument with the given index
+     * @return the values of the arguments
+     */
+    static SExp[] evaluate(Interpreter interpreter, SExp args, Arguments arguments)
+            throws EvaluationError {
+        int count = 0;
+        for(SExp node = args; !node.isAtom(); node = node.cdr())
+            count++;
+        boolean[] forked = new boolean[count];
+        boolean local = false; //The first costly argument is kept
+        int index = 0;
+        for(SExp node = args; !node.isAtom(); node = node.cdr(), index++) {
+            if(cost(node.car()) != COSTLY)
+                continue;
+            forked[index] = local;
+            local = true;
+        }
+        return evaluate(interpreter, forked, arguments);
+    }
+
+    /**
+     * Evaluates a number of independent parts of a call in parallel, the
+     * first on the calling thread, with the same ordering of errors as
+     * arguments. Used by PMAP, see Futures.
+     */
+    static SExp[] evaluateAll(Interpreter interpreter, int count,
+                              Arguments arguments) throws EvaluationError {
+        boolean[] forked = new boolean[count];
+        Arrays.fill(forked, 1, count, true);
+        return evaluate(interpreter, forked, arguments);
+    }
+
+    private static SExp[] evaluate(Interpreter interpreter, boolean[] forked,
+                                   Arguments arguments) throws EvaluationError {
+        if(ForkJoinTask.getPool() == POOL)
+            return forkArguments(interpreter, forked, arguments);
+        Call call = new Call(interpreter, forked, arguments);
+        POOL.execute(call);
+        try {
+            join(interpreter, call);
+        }
+        catch(EvaluationError err) {
+            if(!call.claim())
+                call.quietlyJoin();
+            throw err;
+        }
+        rethrow(call.failure);
+        return call.values;
+    }
+
+    /**
+     * Waits for a task of the pool to be done, while the evaluation of the
+     * waiting interpreter is neither cancelled nor out of its budget.
+     * @throws EvaluationError if the evaluation was cancelled or exceeded one
+     * of its limits before the task was done; the task goes on
+     */
+    static void join(Interpreter interpreter, ForkJoinTask<?> task)
+            throws EvaluationError {
+        while(!task.isDone()) {
+            interpreter.checkWaiting();
+            try {
+                task.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch(TimeoutException e) {
+                //Checked again
+            }
+            catch(ExecutionException e) {
+                return; //The failure is kept by the task
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EvaluationError("Evaluation interrupted");
+            }
+        }
+    }
+
+    /**
+     * Starts a task on the pool, for a future.
+     */
+    static void start(ForkJoinTask<?> task) {
+        if(ForkJoinTask.getPool() == POOL)
+            task.fork();
+        else
+            POOL.execute(task);
+    }
+
+    //Forks the arguments marked as forked and evaluates the others
+    private static SExp[] forkArguments(Interpreter interpreter, boolean[] forked,
+                                        Arguments arguments) throws EvaluationError {
+        int count = forked.length;
+        Fork[] forks = new Fork[count];
+        for(int i = 0; i < count; i++)
+            if(forked[i])
+                forks[i] = new Fork(interpreter, forks, i, arguments);
+        //Started once all exist, as a failing fork cancels those to its right
+        for(Fork fork : forks)
+            if(fork != null)
+                fork.fork();
+
+        SExp[] values = new SExp[count];
+        Throwable failure = null;
+        int failed = count;
+        for(int i = 0; i < count; i++) {
+            if(forks[i] != null)
+                continue;
+            try {
+                values[i] = arguments.evaluate(interpreter, i);
+            }
+            catch(EvaluationError | RuntimeException | Error e) {
+                failure = e;
+                failed = i;
+                cancelFrom(forks, i + 1);
+                break;
+            }
+        }
+        for(int i = 0; i < count; i++) {
+            if(forks[i] == null)
+                continue;
+            forks[i].quietlyJoin();
+            if(i < failed && forks[i].failure != null) {
+                failure = forks[i].failure;
+                failed = i;
+            }
+            values[i] = forks[i].value;
+        }
+        rethrow(failure);
+        return values;
+    }
+
+    /**
+     * Raises an error caught on another thread.
+     */
+    static void rethrow(Throwable failure) throws EvaluationError {
+        if(failure instanceof EvaluationError)
+            throw (EvaluationError) failure;
+        if(failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if(failure != null)
+            throw (Error) failure;
+    }
+
+    //Cancels the forks of the arguments from the given index on
+    private static void cancelFrom(Fork[] forks, int index) {
+        for(int i = index; i < forks.length; i++)
+            if(forks[i] != null)
+                forks[i].interpreter.cancel();
+    }
+
+    //A call handed to the pool by a thread outside it
+    private static final class Call extends RecursiveAction {
+        private final Interpreter interpreter;
+        private final boolean[] forked;
+        private final Arguments arguments;
+        //Set by the first of the pool starting the call and the caller
+        //giving up on it
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        SExp[] values;
+        Throwable failure;
+
+        Call(Interpreter interpreter, boolean[] forked, Arguments arguments) {
+            this.interpreter = interpreter;
+            this.forked = forked;
+            this.arguments = arguments;
+        }
+
+        //Starts or drops the call, false if it was started or dropped before
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+
+        @Override
+        protected void compute() {
+            if(!claim())
+                return;
+            try {
+                values = forkArguments(interpreter, forked, arguments);
+            }
+            catch(EvaluationError | RuntimeException | Error e) {
+                failure = e;
+            }
+        }
+    }
+
+    //An argument evaluated by a forked interpreter
+    private static final class Fork extends RecursiveAction {
+        final Interpreter interpreter;
+        private final Fork[] forks;
+        private final int index;
+        private final Arguments arguments;
+        SExp value;
+        Throwable failure;
+
+        Fork(Interpreter forking, Fork[] forks, int index, Arguments arguments) {
+            this.interpreter = forking.fork();
+            this.forks = forks;
+            this.index = index;
+            this.arguments = arguments;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                interpreter.settleBudget();
+                value = arguments.evaluate(interpreter, index);
+                interpreter.settleBudget();
+            }
+            catch(EvaluationError | RuntimeException | Error e) {
+                failure = e;
+                cancelFrom(forks, index + 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.StringReader;
+
+/**
+ * Measures the throughput of the parser on large generated inputs: a script
+ * of many small definitions and calls read by SExpReader, one long list of
+ * integers and symbols, and one deeply nested list, each of about the given
+ * number of megabytes. Every input is parsed a few times to warm up and the
+ * best time is reported in megabytes and expressions per second; the parsed
+ * results are checked, so a parser which drops or misreads tokens fails.
+ * Run with: java ParseBenchmark [megabytes]
+ * @author: Pravar Mahajan
+ */
+public class ParseBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int size = megabytes << 20;
+
+        StringBuilder script = new StringBuilder(size + 100);
+        int expressions = 0;
+        while(script.length() < size) {
+            script.append("(DEFUN F").append(expressions)
+                    .append(" (X Y) (COND ((LESS X ").append(expressions)
+                    .append(") (CONS X Y)) (T (PLUS X -").append(expressions)
+                    .append("))))\n(F").append(expressions)
+                    .append(" 12 (QUOTE (A . (B . C))))\n");
+            expressions += 2;
+        }
+        measure("script", script, expressions, text -> {
+            SExpReader reader = new SExpReader(new StringReader(text.toString()));
+            int read = 0;
+            while(reader.next() != null)
+                read++;
+            return read;
+        });
+
+        StringBuilder list = new StringBuilder(size + 100).append('(');
+        int elements = 0;
+        while(list.length() < size) {
+            list.append(elements % 3 == 0 ? "SYMBOL" : "").append(elements).append(' ');
+            elements++;
+        }
+        list.append(')');
+        measure("long list", list, elements, text -> {
+            int length = 0;
+            for(SExp node = new Parser().parseExpression(text); !node.isAtom();
+                    node = node.cdr())
+                length++;
+            return length;
+        });
+
+        StringBuilder nested = new StringBuilder(size + 100);
+        int depth = size / 4;
+        for(int i = 0; i < depth; i++)
+            nested.append("(A ");
+        nested.append("NIL");
+        for(int i = 0; i < depth; i++)
+            nested.append(')');
+        measure("nested list", nested, depth, text -> {
+            int levels = 0;
+            for(SExp node = new Parser().parseExpression(text); !node.isAtom();
+                    node = node.cdr().car())
+                levels++;
+            return levels;
+        });
+    }
+
+    interface Parse {
+        int run(CharSequence text) throws Exception;
+    }
+
+    //Parses the input ROUNDS times and reports the best time; count is the
+    //number of expressions, elements or levels the parse has to return
+    private static void measure(String name, CharSequence text, int count,
+                                Parse parse) throws Exception {
+        long best = Long.MAX_VALUE;
+        for(int round = 0; round < ROUNDS; round++) {
+            long startTime = System.nanoTime();
+            int result = parse.run(text);
+            best = Math.min(best, System.nanoTime() - startTime);
+            if(result != count)
+                throw new IllegalStateException(name + ": parsed " + result
+                        + " instead of " + count);
+        }
+        double seconds = best / 1e9;
+        System.out.printf("%s: %.1f MB in %.1f ms, %.1f MB/s, %.0f items/s%n",
+                name, text.length() / 1048576.0, best / 1e6,
+                text.length() / 1048576.0 / seconds, count / seconds);
+    }
+}
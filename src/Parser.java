@@ -1,7 +1,9 @@
 /**
  * @author: Pravar Mahajan
  * Defines methods to read a lisp code and convert it to corresponding SExp obj.
- * Uses recursive descent method to parse the S-Expression
+ * Follows the recursive descent structure of the grammar, but keeps the
+ * lists being parsed on an explicit stack, so lists of any length and depth
+ * are parsed without growing the Java stack.
  * Error handling is done and appropriate error messages are returned in case
  * parser fails to read the expression fully.
  * Rules of grammar for parsing the expressions are as follows:
@@ -10,7 +12,8 @@
  * <atom>  ::= <number> | <symbol>
  */
 
-import java.util.regex.*;
+import java.math.BigInteger;
+import java.util.Arrays;
 
 /**
  * This is the parser class converts the input s-expression and generates
@@ -27,49 +30,116 @@ public class Parser {
             throw new ParseError(tokenAnalyser);
         return terminalExpression;
     }
-    
-    private SExp parseNextSExpression(TokenAnalyser tokenAnalyser) 
-            throws ParseError {
-        //<s-exp> ::= <atom>
+
+    /**
+     * Parses the text of exactly one s-expression, without the trailing '$'
+     * expected by getParsedSExpressions.
+     * @param expression: text of the expression
+     * @return the parsed expression
+     * @throws ParseError if the text is not exactly one s-expression
+     */
+    public SExp parseExpression(CharSequence expression) throws ParseError {
+        TokenAnalyser tokenAnalyser = new TokenAnalyser(expression);
+        SExp terminalExpression = parseNextSExpression(tokenAnalyser);
         tokenAnalyser.skipWhitespaces();
-        if(tokenAnalyser.isIntegerAtom()) {
-            return parseIntAtom(tokenAnalyser);
-        }
-        else if(tokenAnalyser.isSymbolicAtom()) {
-            return parseSymbolicAtom(tokenAnalyser);
-        }
-        else if(tokenAnalyser.isLeftParanthesis()) {
-            tokenAnalyser.skipToken();
+        if(!tokenAnalyser.isEndOfInput())
+            throw new ParseError(tokenAnalyser);
+        return terminalExpression;
+    }
+    
+    //Parsing states of an open list, see parseNextSExpression
+    private static final byte FIRST = 0; //(<s-exp>
+    private static final byte REST = 1; //<rest>
+    private static final byte DOTTED = 2; //(<s-exp>.<s-exp>
+
+    /**
+     * Parses the next s-expression.
+     * Each open list is a frame on an explicit stack, holding its parsing
+     * state and the index of its first element in a shared element stack.
+     * When the list is closed its cons cells are built tail first from the
+     * collected elements.
+     */
+    SExp parseNextSExpression(TokenAnalyser tokenAnalyser) throws ParseError {
+        byte[] states = new byte[16];
+        int[] starts = new int[16];
+        int depth = 0;
+        SExp[] elements = new SExp[16];
+        int count = 0;
+
+        while(true) {
+            //<s-exp> ::= <atom> | () | (<s-exp> ...
             tokenAnalyser.skipWhitespaces();
-            //<s-exp> ::= ()
-            if(tokenAnalyser.isRightParanthesis()) {
-                tokenAnalyser.skipToken();
-                return SymbolTable.getSExpForAtom("NIL");
+            SExp value;
+            if(tokenAnalyser.isIntegerAtom()) {
+                value = parseIntAtom(tokenAnalyser);
             }
-            SExp left = parseNextSExpression(tokenAnalyser);
-            tokenAnalyser.skipWhitespaces();
-            if(tokenAnalyser.isDot()) {
-                //<s-exp> ::= (<s-exp> . <s-exp>)
-                tokenAnalyser.skipToken(); //Skipping the dot
-                tokenAnalyser.skipWhitespaces();
-                SExp right = parseNextSExpression(tokenAnalyser);
+            else if(tokenAnalyser.isSymbolicAtom()) {
+                value = parseSymbolicAtom(tokenAnalyser);
+            }
+            else if(tokenAnalyser.isLeftParanthesis()) {
+                tokenAnalyser.skipToken();
                 tokenAnalyser.skipWhitespaces();
                 if(tokenAnalyser.isRightParanthesis()) {
+                    //<s-exp> ::= ()
                     tokenAnalyser.skipToken();
-                    return new SExp(left, right);
+                    value = SymbolTable.NIL;
                 }
-                else { //Error case
-                    throw new ParseError(tokenAnalyser);
+                else {
+                    if(depth == states.length) {
+                        states = Arrays.copyOf(states, depth * 2);
+                        starts = Arrays.copyOf(starts, depth * 2);
+                    }
+                    states[depth] = FIRST;
+                    starts[depth] = count;
+                    depth++;
+                    continue;
                 }
             }
-            else{
-                //<sexp> ::= (<sexp <rest>
-                SExp rest = parseRest(tokenAnalyser);
-                return new SExp(left, rest);
+            else { //Error case
+                throw new ParseError(tokenAnalyser);
+            }
+
+            //Hand the value to the innermost open list, closing every list
+            //that ends after it
+            while(true) {
+                if(depth == 0)
+                    return value;
+                byte state = states[depth - 1];
+                SExp tail;
+                if(state == DOTTED) {
+                    //<s-exp> ::= (<s-exp> . <s-exp>)
+                    tokenAnalyser.skipWhitespaces();
+                    if(!tokenAnalyser.isRightParanthesis())
+                        throw new ParseError(tokenAnalyser);
+                    tokenAnalyser.skipToken();
+                    tail = value;
+                }
+                else {
+                    if(count == elements.length)
+                        elements = Arrays.copyOf(elements, count * 2);
+                    elements[count++] = value;
+                    tokenAnalyser.skipWhitespaces();
+                    if(state == FIRST && tokenAnalyser.isDot()) {
+                        tokenAnalyser.skipToken(); //Skipping the dot
+                        tokenAnalyser.skipWhitespaces();
+                        states[depth - 1] = DOTTED;
+                        break;
+                    }
+                    //<rest> ::= ) | <space><s-exp> <rest>
+                    states[depth - 1] = REST;
+                    if(!tokenAnalyser.isRightParanthesis())
+                        break;
+                    tokenAnalyser.skipToken();
+                    tail = SymbolTable.NIL;
+                }
+                depth--;
+                int start = starts[depth];
+                value = tail;
+                while(count > start) {
+                    value = HashCons.cons(elements[--count], value);
+                    elements[count] = null;
+                }
             }
-        }
-        else { //Error case
-            throw new ParseError(tokenAnalyser);
         }
     }
 
@@ -77,20 +147,6 @@ public class Parser {
         return tokenAnalyser.getInteger();
     }
 
-    private SExp parseRest(TokenAnalyser tokenAnalyser) throws ParseError {
-        //<sexp> ::= )
-        tokenAnalyser.skipWhitespaces();
-        if(tokenAnalyser.isRightParanthesis()) {
-            tokenAnalyser.skipToken();
-            return SymbolTable.getSExpForAtom("NIL");
-        }
-        //<sexp> ::= <space><sexp><rest>        
-        tokenAnalyser.skipWhitespaces();
-        SExp left = parseNextSExpression(tokenAnalyser);
-        SExp right = parseRest(tokenAnalyser);
-        return new SExp(left, right);
-    }
-
     private SExp parseSymbolicAtom(TokenAnalyser tokenAnalyser) {
         return tokenAnalyser.getIdentifier();
     }
@@ -114,7 +170,8 @@ class ParseError extends Exception {
             errorMessage.append("**Unexpected Character: ").append(
                     tokenAnalyser.getTokenError());
         else if(tokenAnalyser.isIntegerAtom())
-            errorMessage.append("**Ill formed integer atom: ");
+            errorMessage.append("**Ill formed integer atom: ").append(
+                    tokenAnalyser.getIntegerError());
         else if(tokenAnalyser.isLeftParanthesis())
             errorMessage.append("**Unexpected '('");
         else if(tokenAnalyser.isRightParanthesis())
@@ -141,29 +198,56 @@ class ParseError extends Exception {
 }
 /**
  * This class provides methods to extract tokens from the input stream.
- * The constructor requires the string object to work on as input. The object
- * maintains an additional variable called pointer, which points to the current
- * character of the input stream under consideration.
+ * The constructor requires the character sequence to work on as input. The
+ * object maintains an additional variable called pointer, which points to the
+ * current character of the input stream under consideration.
  * The function checkNextToken determines the type of the next token without
  * advancing the pointer. The type have been defined in the enum TokenType
  * To extract the tokens, the methods provided are getIdentifier and getInteger
  * which work on Identifier and Integer symbols respectively. They move the
- * pointer to the location after the end of the identifier. Regular expressions
- * have been defined for matching identifier and integer types.
+ * pointer to the location after the end of the identifier.
+ * Characters are classified through a lookup table and tokens are scanned in
+ * a single forward pass. Identifiers are interned straight from the input and
+ * integers are accumulated digit by digit, so no objects are created per
+ * token except for new symbols and integers outside the cached range.
  */
 class TokenAnalyser {
-    String inputBuffer;
+    final CharSequence inputBuffer;
+    final int length;
     int pointer;
-    Pattern symbolPattern, intPattern;
-    Matcher symbolMatcher, intMatcher;
-    
-    public TokenAnalyser(String input) {
+
+    //Character classes, indexed by ASCII code
+    private static final byte OTHER = 0, SPACE = 1, LETTER = 2, DIGIT = 3,
+            SIGN = 4, PUNCTUATION = 5;
+    private static final byte[] charClass = new byte[128];
+
+    static {
+        for(char ch = 'A'; ch <= 'Z'; ch++)
+            charClass[ch] = LETTER;
+        for(char ch = 'a'; ch <= 'z'; ch++)
+            charClass[ch] = LETTER;
+        for(char ch = '0'; ch <= '9'; ch++)
+            charClass[ch] = DIGIT;
+        charClass['+'] = SIGN;
+        charClass['-'] = SIGN;
+        charClass[' '] = SPACE;
+        charClass['\n'] = SPACE;
+        charClass['\t'] = SPACE;
+        charClass['\r'] = SPACE;
+        charClass['('] = PUNCTUATION;
+        charClass[')'] = PUNCTUATION;
+        charClass['.'] = PUNCTUATION;
+        charClass['$'] = PUNCTUATION;
+    }
+
+    public TokenAnalyser(CharSequence input) {
         inputBuffer = input;
+        length = input.length();
         pointer = 0;
-        symbolPattern = Pattern.compile("[A-Za-z]\\w*");
-        intPattern = Pattern.compile("([-+]?\\d+)([\\s+\\.\\)])");
-        symbolMatcher = symbolPattern.matcher(inputBuffer);
-        intMatcher = intPattern.matcher(inputBuffer);
+    }
+
+    private static byte classOf(char ch) {
+        return ch < 128 ? charClass[ch] : OTHER;
     }
 
     void skipToken() {
@@ -183,7 +267,7 @@ class TokenAnalyser {
     }
 
     void skipWhitespaces() {
-        while(isWhiteSpace())
+        while(pointer < length && classOf(inputBuffer.charAt(pointer)) == SPACE)
             pointer++;
     }
 
@@ -194,6 +278,18 @@ class TokenAnalyser {
         return tokenerr;
     }
 
+    /**
+     * @return the text of the ill formed integer at the pointer, up to the
+     * next delimiter
+     */
+    StringBuilder getIntegerError() {
+        int end = pointer + 1;
+        while(end < length && !isIntegerDelimiter(inputBuffer.charAt(end))
+                && classOf(inputBuffer.charAt(end)) != PUNCTUATION)
+            end++;
+        return new StringBuilder().append(inputBuffer, pointer, end);
+    }
+
     int getLocation() {
         return pointer + 1;
     }
@@ -216,20 +312,47 @@ class TokenAnalyser {
     }
 
     private TokenType checkNextToken() {
-        if(pointer >= inputBuffer.length())
+        if(pointer >= length)
             return TokenType.ERROR_EOS;
-        switch(inputBuffer.charAt(pointer)) {
-            case '(': return TokenType.L_BRAC;
-            case ')': return TokenType.R_BRAC;
-            case '.': return TokenType.DOT;
-            case '$': return TokenType.DOLLAR;
-            case ' ': case '\n': case '\t': case '\r': return TokenType.WHITESPACE;
-            default : return atomType(inputBuffer.charAt(pointer));
+        char ch = inputBuffer.charAt(pointer);
+        switch(classOf(ch)) {
+            case SPACE: return TokenType.WHITESPACE;
+            case LETTER: return TokenType.IDENTIFIER;
+            case DIGIT: case SIGN: return TokenType.INTEGER;
+            case PUNCTUATION:
+                switch(ch) {
+                    case '(': return TokenType.L_BRAC;
+                    case ')': return TokenType.R_BRAC;
+                    case '.': return TokenType.DOT;
+                    default : return TokenType.DOLLAR;
+                }
+            default : return TokenType.ERROR;
         }
     }
     
     public boolean isEndOfExpression() {
-        return pointer == inputBuffer.length() - 1;
+        return pointer == length - 1;
+    }
+
+    public boolean isEndOfInput() {
+        return pointer >= length;
+    }
+
+    /**
+     * Skips whitespace and '$' separator lines between expressions.
+     * @return false if the input has ended, either at its end or at '$$'
+     */
+    boolean skipToNextExpression() {
+        while(true) {
+            skipWhitespaces();
+            if(pointer >= length)
+                return false;
+            if(inputBuffer.charAt(pointer) != '$')
+                return true;
+            if(pointer + 1 < length && inputBuffer.charAt(pointer + 1) == '$')
+                return false;
+            pointer++;
+        }
     }
     
     public boolean isErrorStream() {
@@ -251,32 +374,74 @@ class TokenAnalyser {
         return checkNextToken() == TokenType.IDENTIFIER;
     }
 
-    public TokenType atomType(char ch) {
-        if(Character.isDigit(ch) || ch=='+' || ch == '-')
-            return TokenType.INTEGER;
-        else if(Character.isLetter(ch))
-            return TokenType.IDENTIFIER;
-        else
-            return TokenType.ERROR;
-    }
-    
+    /**
+     * Reads the identifier at the pointer, a letter followed by letters,
+     * digits or underscores.
+     * @return the interned symbol
+     */
     public SExp getIdentifier() {
-        symbolMatcher.find(pointer);
-        String identifier = symbolMatcher.group();
-        pointer = symbolMatcher.end();
-        return SymbolTable.getSExpForAtom(identifier);
+        int start = pointer;
+        int end = start + 1;
+        while(end < length && isIdentifierPart(inputBuffer.charAt(end)))
+            end++;
+        pointer = end;
+        return SymbolTable.intern(inputBuffer, start, end);
     }
-    
-    public SExp getInteger() throws ParseError { 
-        intMatcher.find(pointer);
-        int number;
-        try {
-            number = Integer.parseInt(intMatcher.group(1));
-            pointer += intMatcher.group(1).length();
-            return SymbolTable.getSExpForAtom(number);
+
+    private static boolean isIdentifierPart(char ch) {
+        byte type = classOf(ch);
+        return type == LETTER || type == DIGIT || ch == '_';
+    }
+
+    /**
+     * Reads the integer at the pointer, an optional sign followed by digits.
+     * The integer has to be followed by whitespace, '+', '.', ')' or the end
+     * of the input, otherwise it is ill formed and the pointer is left at its
+     * start.
+     * @return the integer atom
+     * @throws ParseError if the integer is ill formed
+     */
+    public SExp getInteger() throws ParseError {
+        int start = pointer;
+        int end = start;
+        boolean negative = false;
+        if(classOf(inputBuffer.charAt(end)) == SIGN) {
+            negative = inputBuffer.charAt(end) == '-';
+            end++;
         }
-        catch(IllegalStateException exception) {
+        int digitsStart = end;
+        long number = 0;
+        boolean overflow = false;
+        //Accumulate negatively so that Long.MIN_VALUE can be represented
+        while(end < length && classOf(inputBuffer.charAt(end)) == DIGIT) {
+            int digit = inputBuffer.charAt(end) - '0';
+            if(number < (Long.MIN_VALUE + digit) / 10)
+                overflow = true;
+            else
+                number = number * 10 - digit;
+            end++;
+        }
+        if(end == digitsStart
+                || (end < length && !isIntegerDelimiter(inputBuffer.charAt(end))))
             throw new ParseError(this);
+        pointer = end;
+        if(overflow)
+            return SymbolTable.getSExpForAtom(new BigInteger(
+                    inputBuffer.subSequence(start, end).toString()));
+        if(negative)
+            return SymbolTable.getSExpForAtom(number);
+        if(number == Long.MIN_VALUE)
+            return SymbolTable.getSExpForAtom(BigInteger.valueOf(number).negate());
+        return SymbolTable.getSExpForAtom(-number);
+    }
+
+    private static boolean isIntegerDelimiter(char ch) {
+        switch(ch) {
+            case ' ': case '\t': case '\n': case '\u000B': case '\f': case '\r':
+            case '+': case '.': case ')':
+                return true;
+            default:
+                return false;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,11 @@
+/**
+ * A primitive function implemented in Java.
+ * Primitives are registered with the Builtins table under a symbol name and
+ * receive their arguments already evaluated, as a list. The number of
+ * arguments has been checked against the registered arity before apply is
+ * called.
+ * @author: Pravar Mahajan
+ */
+public interface Primitive {
+    SExp apply(SExp args) throws EvaluationError;
+}
@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * This class prints s-expressions.
+ * The text is appended directly to an Appendable, such as a StringBuilder or
+ * a Writer, in a single pass over the expression, without recursion and
+ * without building the text of subexpressions first, so large and deeply
+ * nested expressions are printed in time and memory proportional to their
+ * size.
+ * Expressions are printed in one of two notations:
+ *   DOT   every cons cell in full dot notation, (A . (B . NIL))
+ *   LIST  lists as sequences of elements, (A B), with a dot only before a
+ *         final atom other than NIL, (A B . C)
+ * For large outputs the printer can be limited in depth and length. A list
+ * nested deeper than the depth limit is printed as "...", and the elements of
+ * a list beyond the length limit are replaced by a single "...". The top level
+ * expression is at depth 0. In dot notation the length of a list is the
+ * number of cells along its cdrs, as in list notation, so both notations
+ * leave out the same part of an expression.
+ * @author: Pravar Mahajan
+ */
+public class Printer {
+
+    public enum Notation {
+        DOT, LIST
+    }
+
+    /**
+     * Prints in full dot notation without limits, as SExp.getDottedNotation.
+     */
+    public static final Printer DOT = new Printer(Notation.DOT);
+
+    public static final Printer LIST = new Printer(Notation.LIST);
+
+    private static final String ELLIPSIS = "...";
+
+    //Kinds of the entries of the pending stack
+    private static final int EXPRESSION = 0; //An expression to print
+    private static final int REST = 1; //The cdr of a list being printed
+    private static final int TEXT = 2; //Text to append
+
+    private final Notation notation;
+    private final int maxDepth;
+    private final int maxLength;
+
+    public Printer(Notation notation) {
+        this(notation, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param notation: DOT or LIST
+     * @param maxDepth: lists nested deeper than this are printed as "..."
+     * @param maxLength: elements of a list after this many are left out
+     */
+    public Printer(Notation notation, int maxDepth, int maxLength) {
+        if(maxDepth < 0 || maxLength < 0)
+            throw new IllegalArgumentException("Negative print limit");
+        this.notation = notation;
+        this.maxDepth = maxDepth;
+        this.maxLength = maxLength;
+    }
+
+    public Notation getNotation() {
+        return notation;
+    }
+
+    /**
+     * @return the printed expression
+     */
+    public String toString(SExp sExp) {
+        StringBuilder out = new StringBuilder();
+        try {
+            print(sExp, out);
+        }
+        catch(IOException e) {
+            throw new IllegalStateException(e); //A StringBuilder does not throw
+        }
+        return out.toString();
+    }
+
+    /**
+     * Appends the printed expression to out.
+     * @throws IOException if out does
+     */
+    public void print(SExp sExp, Appendable out) throws IOException {
+        //Entries still to print, held in parallel arrays. An EXPRESSION entry
+        //has its expression, depth and its position in the list it is the
+        //rest of, for the cdrs of dot notation. A REST entry is the rest of a
+        //list in list notation, with the depth of the list and the number of
+        //elements printed so far.
+        int[] kinds = new int[16];
+        SExp[] nodes = new SExp[16];
+        String[] texts = new String[16];
+        int[] depths = new int[16];
+        int[] counts = new int[16];
+        int size = 0;
+        kinds[size] = EXPRESSION;
+        nodes[size] = sExp;
+        size++;
+        while(size > 0) {
+            size--;
+            int kind = kinds[size];
+            SExp node = nodes[size];
+            String text = texts[size];
+            int depth = depths[size];
+            int count = counts[size];
+            nodes[size] = null;
+            texts[size] = null;
+            depths[size] = 0;
+            counts[size] = 0;
+            if(size + 4 > kinds.length) {
+                int length = kinds.length * 2;
+                kinds = Arrays.copyOf(kinds, length);
+                nodes = Arrays.copyOf(nodes, length);
+                texts = Arrays.copyOf(texts, length);
+                depths = Arrays.copyOf(depths, length);
+                counts = Arrays.copyOf(counts, length);
+            }
+            if(kind == TEXT) {
+                out.append(text);
+            }
+            else if(kind == REST) {
+                //In list notation, after element number count of a list
+                if(node.isNil())
+                    out.append(')');
+                else if(node.isAtom())
+                    out.append(" . ").append(node.getAtomAsString()).append(')');
+                else if(count >= maxLength)
+                    out.append(' ').append(ELLIPSIS).append(')');
+                else {
+                    out.append(' ');
+                    kinds[size] = REST;
+                    nodes[size] = node.cdr();
+                    depths[size] = depth;
+                    counts[size++] = count + 1;
+                    kinds[size] = EXPRESSION;
+                    nodes[size] = node.car();
+                    depths[size++] = depth + 1;
+                }
+            }
+            else if(node.isAtom())
+                out.append(node.getAtomAsString());
+            else if(depth >= maxDepth || count >= maxLength)
+                out.append(ELLIPSIS);
+            else if(notation == Notation.LIST) {
+                out.append('(');
+                kinds[size] = REST;
+                nodes[size] = node.cdr();
+                depths[size] = depth;
+                counts[size++] = 1;
+                kinds[size] = EXPRESSION;
+                nodes[size] = node.car();
+                depths[size++] = depth + 1;
+            }
+            else {
+                //The cdr continues the same list, at the same depth
+                out.append('(');
+                kinds[size] = TEXT;
+                texts[size++] = ")";
+                kinds[size] = EXPRESSION;
+                nodes[size] = node.cdr();
+                depths[size] = depth;
+                counts[size++] = count + 1;
+                kinds[size] = TEXT;
+                texts[size++] = " . ";
+                kinds[size] = EXPRESSION;
+                nodes[size] = node.car();
+                depths[size++] = depth + 1;
+            }
+        }
+    }
+}
@@ -1,77 +1,148 @@
 /**
  * This is class defines represents the parsed, in-memory lisp expression.
  * The enum SExpType specifies the type of S-Expression: integer atom,
- * symbolic atom or a non atom. The type variable can be one and only one of
- * these 3 types.
- * In case the type is an integer atom, the value should of the corresponding
- * integer is stored in int val. For symbolic atoms, the name variable contains
- * the variable name. If it's a non atomic S-Expression, then left and right
- * variables point to the left and the right children nodes respectively,
- * otherwise they are null.
+ * symbolic atom, object or a non atom. The type variable can be one and only
+ * one of these 4 types. Objects are atoms made by the interpreter itself,
+ * such as futures, which are neither numbers nor symbols: they are equal
+ * only to themselves and print as their name.
+ * In case the type is an integer atom, the value of the corresponding
+ * integer is stored in long value. Integers which do not fit in a long are
+ * stored in bigValue instead, and the arithmetic functions promote a result
+ * to a BigInteger only when the long operation overflows. For symbolic
+ * atoms, the name variable contains the variable name. If it's a non atomic
+ * S-Expression, then left and right variables point to the left and the
+ * right children nodes respectively, otherwise they are null.
  * @author: Pravar Mahajan
  */
 
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
 public class SExp {
 
     private final SExpType type; //One of the enum SExpType
-    private final int value; //Only if type is INT_ATOM
-    private final String name; //Only if type is SYM_ATOM
+    private final long value; //Only if type is INT_ATOM
+    private final BigInteger bigValue; //Only if the integer exceeds a long
+    private final String name; //Only if type is SYM_ATOM or OBJECT
+    private final int symbolId; //Only if type is SYM_ATOM
     private final SExp left;
-    private SExp right; //If type is NON_ATOM
+    private final SExp right; //If type is NON_ATOM
+    private final boolean hashConsed; //Cell interned by HashCons
+    private final int hash; //Structural hash, only if hashConsed
+
+    //Marks a finished cons cell in the traversal of structuralHash
+    private static final SExp COMBINE = new SExp(null, null);
 
     public enum SExpType {
-        INT_ATOM, SYM_ATOM, NON_ATOM
+        INT_ATOM, SYM_ATOM, OBJECT, NON_ATOM
     }
     
     //Public constructors
     
-    public SExp(int number) {
+    public SExp(long number) {
         type = SExpType.INT_ATOM;
         value = number;
+        bigValue = null;
         name = null;
+        symbolId = 0;
         left = null;
         right = null;
+        hashConsed = false;
+        hash = 0;
     }
     
-    public SExp(String symbolName) {
+    //Integers in the long range are kept in value, see
+    //SymbolTable.getSExpForAtom(BigInteger)
+    SExp(BigInteger number) {
+        type = SExpType.INT_ATOM;
+        value = 0;
+        bigValue = number;
+        name = null;
+        symbolId = 0;
+        left = null;
+        right = null;
+        hashConsed = false;
+        hash = 0;
+    }
+    
+    //Symbols are created only by the SymbolTable, which interns them
+    SExp(String symbolName, int id) {
         type = SExpType.SYM_ATOM;
         value = 0;
+        bigValue = null;
         name = symbolName;
+        symbolId = id;
         left = null;
         right = null;
+        hashConsed = false;
+        hash = 0;
+    }
+    
+    //Objects are made by subclasses, such as Futures.Future
+    SExp(String printedName) {
+        type = SExpType.OBJECT;
+        value = 0;
+        bigValue = null;
+        name = printedName;
+        symbolId = 0;
+        left = null;
+        right = null;
+        hashConsed = false;
+        hash = 0;
     }
     
     public SExp(SExp leftExpr, SExp rightExpr) {
         type = SExpType.NON_ATOM;
         value = 0;
+        bigValue = null;
+        name = null;
+        symbolId = 0;
+        left = leftExpr;
+        right = rightExpr;
+        hashConsed = false;
+        hash = 0;
+    }
+
+    //Interned cons cells are created only by HashCons
+    SExp(SExp leftExpr, SExp rightExpr, int structuralHash) {
+        type = SExpType.NON_ATOM;
+        value = 0;
+        bigValue = null;
         name = null;
+        symbolId = 0;
         left = leftExpr;
         right = rightExpr;
+        hashConsed = true;
+        hash = structuralHash;
     }
     
     String getAtomAsString() {
         assert(type != SExpType.NON_ATOM);
-        if(type == SExpType.SYM_ATOM)
+        if(type == SExpType.SYM_ATOM || type == SExpType.OBJECT)
             return name; 
+        else if(bigValue != null)
+            return bigValue.toString();
         else
-            return Integer.toString(value);
+            return Long.toString(value);
     }
     
     //Evaluation functions start here
     
     public boolean isNil() {
-        return this == SymbolTable.getSExpForAtom("NIL");
+        return this == SymbolTable.NIL;
     }
     
-    SExp cons(SExp rest) {
-        return new SExp(this, rest);
-    }
-
-    void setRight(SExp right) {
-        this.right = right;
+    /**
+     * @return true if this is an atom or an interned cons cell, so an equal
+     * expression built by HashCons is this very object
+     */
+    boolean isCanonical() {
+        return type != SExpType.NON_ATOM || hashConsed;
     }
     boolean isAtom() {
-        return isIntegerAtom() || isSymbolicAtom();
+        return type != SExpType.NON_ATOM;
     }
 
     boolean isIntegerAtom() {
@@ -83,7 +154,7 @@ public class SExp {
     }
 
     boolean isTrue() {
-        return this == SymbolTable.getSExpForAtom("T");
+        return this == SymbolTable.T;
     }
     
     public SExp car() {
@@ -94,79 +165,204 @@ public class SExp {
         return right;
     }
     
-    public boolean equalsSymbol(String val) {
-        return type == SExpType.SYM_ATOM && name.equals(val);
+    int getSymbolId() {
+        assert(type == SExpType.SYM_ATOM);
+        return symbolId;
     }
     
-    public boolean equalsSymbol(int val) {
-        return type == SExpType.INT_ATOM && value == val;
+    public boolean equalsSymbol(long val) {
+        return type == SExpType.INT_ATOM && bigValue == null && value == val;
     }
     
+    //Symbols are interned, so two symbols are equal only if they are the
+    //same object, like objects
     public SExp equals(SExp other) {
         if(type != other.type)
             return boolToSExp(false);
         else if(type == SExpType.INT_ATOM)
-            return boolToSExp(value == other.value);
-        else if(type == SExpType.SYM_ATOM)
-            return boolToSExp(name.equals(other.name));
+            return boolToSExp(compareIntegers(this, other) == 0);
+        else if(type == SExpType.SYM_ATOM || type == SExpType.OBJECT)
+            return boolToSExp(this == other);
         else
             return boolToSExp(false);
     }
     
+    /**
+     * Hash of the structure of the expression: integers hash by value,
+     * symbols and objects by identity and a cons cell by the hashes of its
+     * car and cdr, so expressions that sameStructure considers equal hash
+     * alike. The hash of an interned cell is computed once, when it is
+     * created; for other cells it is computed without recursion on every
+     * call.
+     */
+    int structuralHash() {
+        if(type != SExpType.NON_ATOM)
+            return atomHash();
+        if(hashConsed)
+            return hash;
+        Deque<SExp> pending = new ArrayDeque<>();
+        int[] hashes = new int[16];
+        int count = 0;
+        pending.push(this);
+        while(!pending.isEmpty()) {
+            SExp node = pending.pop();
+            if(count == hashes.length)
+                hashes = Arrays.copyOf(hashes, count * 2);
+            if(node == COMBINE) {
+                int cdrHash = hashes[--count];
+                int carHash = hashes[--count];
+                hashes[count++] = combineHashes(carHash, cdrHash);
+            }
+            else if(node.type != SExpType.NON_ATOM)
+                hashes[count++] = node.atomHash();
+            else if(node.hashConsed)
+                hashes[count++] = node.hash;
+            else {
+                pending.push(COMBINE);
+                pending.push(node.right);
+                pending.push(node.left);
+            }
+        }
+        return hashes[0];
+    }
+
+    static int combineHashes(int carHash, int cdrHash) {
+        int hash = (31 * carHash + cdrHash) * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private int atomHash() {
+        if(type == SExpType.SYM_ATOM)
+            return symbolId * 0x9E3779B9;
+        if(type == SExpType.OBJECT)
+            return System.identityHashCode(this);
+        return bigValue != null ? bigValue.hashCode() : Long.hashCode(value);
+    }
+
+    /**
+     * Compares the structure of two expressions: equal integers, the same
+     * symbols and lists of such elements in the same shape. Interned cells
+     * are compared by identity.
+     */
+    boolean sameStructure(SExp other) {
+        Deque<SExp> pending = new ArrayDeque<>();
+        SExp node = this;
+        while(true) {
+            if(node != other) {
+                //Equal interned cells are the same object
+                if(node.hashConsed && other.hashConsed)
+                    return false;
+                if(node.type != other.type)
+                    return false;
+                if(node.type == SExpType.INT_ATOM) {
+                    if(compareIntegers(node, other) != 0)
+                        return false;
+                }
+                else if(node.type != SExpType.NON_ATOM)
+                    return false; //Symbols are interned, objects unique
+                else {
+                    pending.push(other.right);
+                    pending.push(node.right);
+                    pending.push(other.left);
+                    pending.push(node.left);
+                }
+            }
+            if(pending.isEmpty())
+                return true;
+            node = pending.pop();
+            other = pending.pop();
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return structuralHash();
+    }
+
+    //Structural equality, for use as a key in hash based collections. The
+    //equals taking an SExp is the EQ primitive and returns a lisp boolean.
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof SExp && sameStructure((SExp) other);
+    }
+
     public static SExp boolToSExp(boolean flag) {
-        if(flag)
-            return SymbolTable.getSExpForAtom("T");
-        else
-            return SymbolTable.getSExpForAtom("NIL");
+        return flag ? SymbolTable.T : SymbolTable.NIL;
     }
     
+    //The arithmetic functions work on longs and fall back to BigInteger if
+    //an operand is a bignum or the long operation overflows
     static SExp plus(SExp op1, SExp op2) {
-        return new SExp(op1.value+op2.value);
+        if(op1.bigValue == null && op2.bigValue == null) {
+            try {
+                return SymbolTable.getSExpForAtom(Math.addExact(op1.value, op2.value));
+            }
+            catch(ArithmeticException overflow) {}
+        }
+        return SymbolTable.getSExpForAtom(op1.toBigInteger().add(op2.toBigInteger()));
     }
 
     static SExp times(SExp op1, SExp op2) {
-        return new SExp(op1.value*op2.value);
+        if(op1.bigValue == null && op2.bigValue == null) {
+            try {
+                return SymbolTable.getSExpForAtom(Math.multiplyExact(op1.value, op2.value));
+            }
+            catch(ArithmeticException overflow) {}
+        }
+        return SymbolTable.getSExpForAtom(op1.toBigInteger().multiply(op2.toBigInteger()));
     }
 
     static SExp minus(SExp op1, SExp op2) {
-        return new SExp(op1.value-op2.value);
+        if(op1.bigValue == null && op2.bigValue == null) {
+            try {
+                return SymbolTable.getSExpForAtom(Math.subtractExact(op1.value, op2.value));
+            }
+            catch(ArithmeticException overflow) {}
+        }
+        return SymbolTable.getSExpForAtom(op1.toBigInteger().subtract(op2.toBigInteger()));
     }
 
-    static SExp quotient(SExp op1, SExp op2) {
-        return new SExp(op1.value/op2.value);
+    static SExp quotient(SExp op1, SExp op2) throws EvaluationError {
+        checkNonZero(op2);
+        //Long.MIN_VALUE / -1 is the only long division that overflows
+        if(op1.bigValue == null && op2.bigValue == null
+                && !(op1.value == Long.MIN_VALUE && op2.value == -1))
+            return SymbolTable.getSExpForAtom(op1.value/op2.value);
+        return SymbolTable.getSExpForAtom(op1.toBigInteger().divide(op2.toBigInteger()));
     }
 
-    static SExp remainder(SExp op1, SExp op2) {
-        return new SExp(op1.value%op2.value);
+    static SExp remainder(SExp op1, SExp op2) throws EvaluationError {
+        checkNonZero(op2);
+        if(op1.bigValue == null && op2.bigValue == null)
+            return SymbolTable.getSExpForAtom(op1.value%op2.value);
+        return SymbolTable.getSExpForAtom(op1.toBigInteger().remainder(op2.toBigInteger()));
     }
 
     static SExp less(SExp op1, SExp op2) {
-        return boolToSExp(op1.value < op2.value);
+        return boolToSExp(compareIntegers(op1, op2) < 0);
     }
 
     static SExp greater(SExp op1, SExp op2) {
-        return boolToSExp(op1.value > op2.value);
+        return boolToSExp(compareIntegers(op1, op2) > 0);
+    }
+
+    private static int compareIntegers(SExp op1, SExp op2) {
+        if(op1.bigValue == null && op2.bigValue == null)
+            return Long.compare(op1.value, op2.value);
+        return op1.toBigInteger().compareTo(op2.toBigInteger());
+    }
+
+    private static void checkNonZero(SExp divisor) throws EvaluationError {
+        if(divisor.bigValue == null && divisor.value == 0)
+            throw new EvaluationError("Division by zero!");
+    }
+
+    private BigInteger toBigInteger() {
+        return bigValue != null ? bigValue : BigInteger.valueOf(value);
     }
     
-    //Convert S-Exp to a string recursively
+    //Convert S-Exp to a string in dot notation, see Printer
     String getDottedNotation() {
-        StringBuilder dottedNotation = new StringBuilder();
-        switch (type) {
-        case INT_ATOM:
-            dottedNotation.append(value);
-            break;
-        case SYM_ATOM:
-            dottedNotation.append(name);
-            break;
-        default:
-            dottedNotation.append("(");
-            dottedNotation.append(left.getDottedNotation());
-            dottedNotation.append(" . ");
-            dottedNotation.append(right.getDottedNotation());
-            dottedNotation.append(")");
-            break;
-        }
-        
-        return dottedNotation.toString();
+        return Printer.DOT.toString(this);
     }
 }
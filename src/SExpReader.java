@@ -0,0 +1,109 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class reads s-expressions one at a time from a character stream.
+ * Expressions are separated by whitespace; a line holding only '$' is also
+ * accepted as a separator and '$$' ends the input, so files written for the
+ * interactive prompt can be read as well.
+ * The input is pulled through a fixed size buffer and only the text of the
+ * expression being read is kept, so memory use depends on the size of the
+ * largest expression, not on the size of the input. The boundaries of an
+ * expression are found by counting parentheses; the text is then handed to
+ * the Parser, so syntax errors are reported as ParseError with locations
+ * relative to the start of the expression.
+ * @author: Pravar Mahajan
+ */
+public class SExpReader {
+
+    private final Reader input;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+    private boolean endOfInput = false;
+    private boolean finished = false; //Set once '$$' has been read
+
+    private final StringBuilder expression = new StringBuilder();
+    private final Parser parser = new Parser();
+
+    public SExpReader(Reader input) {
+        this.input = input;
+    }
+
+    public SExpReader(InputStream input) {
+        this(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the next s-expression.
+     * @return the parsed expression, or null at the end of the input
+     * @throws IOException if reading the underlying stream fails
+     * @throws ParseError if the expression is malformed. The text of the
+     * malformed expression is skipped, so reading can continue after it.
+     */
+    public SExp next() throws IOException, ParseError {
+        if(finished || !readExpression())
+            return null;
+        return parser.parseExpression(expression);
+    }
+
+    /**
+     * Collects the text of the next expression into the expression buffer.
+     * @return false if there are no more expressions
+     */
+    private boolean readExpression() throws IOException {
+        expression.setLength(0);
+        int ch;
+        while(true) {
+            ch = peek();
+            if(ch < 0)
+                return false;
+            if(Character.isWhitespace(ch)) {
+                position++;
+            }
+            else if(ch == '$') {
+                position++;
+                if(peek() == '$') {
+                    finished = true;
+                    return false;
+                }
+            }
+            else break;
+        }
+        if(ch != '(') {
+            //An atom, or a stray character the parser will report
+            do {
+                expression.append((char) ch);
+                position++;
+                ch = peek();
+            } while(ch >= 0 && !Character.isWhitespace(ch)
+                    && ch != '(' && ch != ')' && ch != '$');
+            return true;
+        }
+        int depth = 0;
+        do {
+            if(ch == '(')
+                depth++;
+            else if(ch == ')')
+                depth--;
+            expression.append((char) ch);
+            position++;
+        } while(depth > 0 && (ch = peek()) >= 0);
+        return true;
+    }
+
+    private int peek() throws IOException {
+        if(position == limit) {
+            if(endOfInput)
+                return -1;
+            limit = input.read(buffer);
+            position = 0;
+            if(limit <= 0) {
+                limit = 0;
+                endOfInput = true;
+                return -1;
+            }
+        }
+        return buffer[position];
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures how evaluation scales with the number of threads, each running
+ * its own Interpreter. For 1, 2, 4 ... up to the given number of threads (the
+ * number of processors by default) every thread defines the same functions
+ * in its interpreter and evaluates a fixed amount of work, and the total
+ * evaluations per second are reported with the speedup over one thread.
+ * Before that, the threads intern the same new symbols at the same time and
+ * the run fails if two threads were given different objects for a name, and
+ * the results of every thread are checked against the expected values.
+ * Run with: java ScalingBenchmark [threads]
+ * @author: Pravar Mahajan
+ */
+public class ScalingBenchmark {
+
+    private static final String LIBRARY =
+            "(DEFUN FIB (N) (COND ((LESS N 2) N)"
+            + " (T (PLUS (FIB (MINUS N 1)) (FIB (MINUS N 2))))))"
+            + " (DEFUN APPEND (X Y) (COND ((NULL X) Y)"
+            + " (T (CONS (CAR X) (APPEND (CDR X) Y)))))"
+            + " (DEFUN REV (X) (COND ((NULL X) NIL)"
+            + " (T (APPEND (REV (CDR X)) (CONS (CAR X) NIL)))))";
+    private static final String WORK = "(FIB 20)";
+    private static final String CHECK = "(REV (QUOTE (1 2 3 4 5)))";
+    private static final int ROUNDS = 200; //Evaluations of WORK per thread
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+                : Runtime.getRuntime().availableProcessors();
+        checkInterning(Math.max(maxThreads, 2));
+        double single = 0;
+        for(int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = measure(threads);
+            if(threads == 1)
+                single = rate;
+            System.out.printf("%d threads: %.0f evaluations/s, speedup %.2f%n",
+                    threads, rate, rate / single);
+        }
+    }
+
+    //Interns the same names on every thread at once
+    private static void checkInterning(int threads) throws Exception {
+        int names = 100000;
+        List<Callable<SExp[]>> tasks = new ArrayList<>();
+        for(int t = 0; t < threads; t++)
+            tasks.add(() -> {
+                SExp[] symbols = new SExp[names];
+                for(int i = 0; i < names; i++)
+                    symbols[i] = SymbolTable.getSExpForAtom("SYMBOL" + i);
+                return symbols;
+            });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<SExp[]>> results = pool.invokeAll(tasks);
+            SExp[] first = results.get(0).get();
+            for(Future<SExp[]> result : results)
+                if(!Arrays.equals(result.get(), first)) //Compares by reference
+                    throw new IllegalStateException("A symbol was interned twice");
+        }
+        finally {
+            pool.shutdown();
+        }
+        System.out.println("Interning: " + threads + " threads, " + names
+                + " symbols, no duplicates");
+    }
+
+    private static double measure(int threads) throws Exception {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        List<Callable<String>> tasks = new ArrayList<>();
+        for(int t = 0; t < threads; t++)
+            tasks.add(() -> {
+                Interpreter interpreter = new Interpreter();
+                interpreter.evaluate(LIBRARY);
+                for(int i = 0; i < ROUNDS / 10; i++) //Warm up
+                    interpreter.evaluate(WORK);
+                start.await();
+                for(int i = 0; i < ROUNDS; i++)
+                    interpreter.evaluate(WORK);
+                return interpreter.evaluate(WORK).getDottedNotation() + " "
+                        + interpreter.evaluate(CHECK).getDottedNotation();
+            });
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for(Callable<String> task : tasks)
+                results.add(pool.submit(task));
+            start.await();
+            long startTime = System.nanoTime();
+            for(Future<String> result : results)
+                if(!result.get().equals(
+                        "6765 (5 . (4 . (3 . (2 . (1 . NIL)))))"))
+                    throw new IllegalStateException("Wrong result " + result.get());
+            long nanos = System.nanoTime() - startTime;
+            return (double) threads * ROUNDS / (nanos / 1e9);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class serves the interpreter over TCP.
+ * A client sends s-expressions in the syntax of the Parser, separated by
+ * whitespace or lines holding '$' as at the prompt, and gets one line back
+ * for each: "> " followed by the result in dot notation, or "! " followed by
+ * the error message. '$$' or the end of its input closes the connection.
+ * Every connection is a session with an Interpreter of its own, built on the
+ * library interpreter given to the server, so the functions loaded into the
+ * library at startup are shared read only and whatever a client defines is
+ * seen by that client only. A connection is served by a thread of its own.
+ * Virtual threads are not available on Java 17, so these are platform threads
+ * from a pool, and their number is bounded by maxConnections: once that many
+ * connections are open the server stops accepting, and further clients wait
+ * in the backlog of the listening socket until a connection closes. This is
+ * the backpressure; a client is never accepted without a thread to serve it.
+ * Each expression has timeoutMillis to evaluate, after which the evaluation
+ * is cancelled (see Interpreter.cancel) and the client gets an error. A
+ * connection idle for IDLE_MILLIS is closed, so idle clients cannot hold the
+ * connections forever. When a connection closes its session is cancelled,
+ * which stops the futures it left running on the Parallel pool.
+ * Started by Main with --serve; LoadClient generates load for it.
+ * @author: Pravar Mahajan
+ */
+public class Server implements Closeable {
+
+    private static final int IDLE_MILLIS = 60000;
+
+    private final ServerSocket socket;
+    private final Interpreter library;
+    private final long timeoutMillis;
+    private final Semaphore connections;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "lisp-server-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private volatile boolean closed = false;
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * @param port: port to listen on, 0 for any free port
+     * @param library: interpreter holding the shared functions. It must not
+     * evaluate anything while the server runs.
+     * @param maxConnections: number of connections served at once
+     * @param timeoutMillis: time an expression may take to evaluate
+     * @throws IOException if the port cannot be bound
+     */
+    public Server(int port, Interpreter library, int maxConnections,
+                  long timeoutMillis) throws IOException {
+        //Clients beyond maxConnections queue in the backlog
+        this.socket = new ServerSocket(port, Math.max(50, maxConnections),
+                InetAddress.getLoopbackAddress());
+        this.library = library;
+        this.timeoutMillis = timeoutMillis;
+        this.connections = new Semaphore(maxConnections);
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Accepts and serves connections until the server is closed.
+     */
+    public void run() {
+        while(!closed) {
+            try {
+                connections.acquire();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            Socket client;
+            try {
+                client = socket.accept();
+            }
+            catch(IOException e) {
+                connections.release();
+                if(!closed)
+                    System.err.println("Accept failed: " + e.getMessage());
+                continue;
+            }
+            accepted.incrementAndGet();
+            try {
+                workers.execute(() -> {
+                    try {
+                        serve(client);
+                    }
+                    finally {
+                        connections.release();
+                    }
+                });
+            }
+            catch(RejectedExecutionException e) { //Closed meanwhile
+                connections.release();
+                closeQuietly(client);
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        Interpreter session = new Interpreter(library);
+        try(Socket connection = client) {
+            connection.setSoTimeout(IDLE_MILLIS);
+            connection.setTcpNoDelay(true);
+            SExpReader reader = new SExpReader(new InputStreamReader(
+                    connection.getInputStream(), StandardCharsets.UTF_8));
+            Writer output = new BufferedWriter(new OutputStreamWriter(
+                    connection.getOutputStream(), StandardCharsets.UTF_8));
+            while(!closed) {
+                SExp expression;
+                try {
+                    expression = reader.next();
+                }
+                catch(ParseError err) {
+                    reply(output, "! " + err.getMessage());
+                    errors.incrementAndGet();
+                    continue;
+                }
+                if(expression == null)
+                    break;
+                requests.incrementAndGet();
+                reply(output, evaluate(session, expression));
+            }
+        }
+        catch(IOException e) {
+            //The client went away or stayed idle; the session is dropped
+        }
+        finally {
+            session.cancel(); //Stops the futures the client left running
+        }
+    }
+
+    //Evaluates an expression within the timeout
+    private String evaluate(Interpreter session, SExp expression) {
+        ScheduledFuture<?> deadline = timer.schedule(session::cancel,
+                timeoutMillis, TimeUnit.MILLISECONDS);
+        SExp result = null;
+        String error = null;
+        try {
+            result = session.evaluate(expression);
+        }
+        catch(EvaluationError err) {
+            error = err.getMessage();
+        }
+        catch(StackOverflowError err) {
+            error = "Stack overflow, recursion is too deep";
+        }
+        boolean timedOut = !deadline.cancel(false);
+        if(timedOut) {
+            try {
+                deadline.get(); //The cancel may still be running
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch(ExecutionException | CancellationException e) {
+                //Nothing to wait for
+            }
+            //The forks and futures of the evaluation stay cancelled
+            session.clearCancel();
+        }
+        if(result != null)
+            return "> " + result.getDottedNotation();
+        errors.incrementAndGet();
+        if(timedOut) {
+            timeouts.incrementAndGet();
+            return "! Timed out after " + timeoutMillis + " ms";
+        }
+        return "! " + error;
+    }
+
+    private static void reply(Writer output, String line) throws IOException {
+        output.write(line);
+        output.write('\n');
+        output.flush();
+    }
+
+    private static void closeQuietly(Socket client) {
+        try {
+            client.close();
+        }
+        catch(IOException e) {
+            //Already closed
+        }
+    }
+
+    /**
+     * Stops accepting connections. Open connections are closed once the
+     * expression they are reading is answered.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        socket.close();
+        workers.shutdown();
+        timer.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "server: " + accepted.get() + " connections, " + requests.get()
+                + " requests, " + errors.get() + " errors, " + timeouts.get()
+                + " timeouts";
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ * This class loads lisp source files, typically libraries of DEFUNs, and
+ * evaluates every top level expression in them.
+ * The file is memory mapped and tokenized directly from the mapped bytes
+ * through a CharSequence view, so no String holding the file contents is
+ * ever built. Source files are expected to be ASCII. As in scripts written
+ * for the prompt, lines holding '$' are skipped and '$$' ends the file.
+ * An evaluation error is reported and loading continues with the next
+ * expression; a parse error stops the load, since the rest of the file cannot
+ * be split into expressions reliably.
+ * @author: Pravar Mahajan
+ */
+public class SourceLoader {
+
+    private SourceLoader() {}
+
+    /**
+     * Loads and evaluates a source file.
+     * @param interpreter: the interpreter evaluating the file
+     * @param file: path of the file
+     * @return statistics of the load
+     * @throws IOException if the file cannot be mapped
+     * @throws ParseError if the file contains a malformed expression
+     */
+    public static LoadResult load(Interpreter interpreter, Path file)
+            throws IOException, ParseError {
+        long startTime = System.nanoTime();
+        MappedByteBuffer buffer;
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException(file + " is too large to be mapped");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        Parser parser = new Parser();
+        TokenAnalyser tokenAnalyser = new TokenAnalyser(new ByteCharSequence(buffer));
+        int forms = 0, errors = 0;
+        while(tokenAnalyser.skipToNextExpression()) {
+            SExp expression = parser.parseNextSExpression(tokenAnalyser);
+            forms++;
+            try {
+                interpreter.evaluate(expression);
+            }
+            catch(EvaluationError err) {
+                errors++;
+                System.err.println(file + ": " + err.getMessage());
+            }
+        }
+        return new LoadResult(file, buffer.capacity(), forms, errors,
+                System.nanoTime() - startTime);
+    }
+
+    /**
+     * Statistics of a load: size of the file, number of top level forms,
+     * forms which failed to evaluate and the time taken.
+     */
+    public static class LoadResult {
+        private final Path file;
+        private final long bytes;
+        private final int forms;
+        private final int errors;
+        private final long nanos;
+
+        LoadResult(Path file, long bytes, int forms, int errors, long nanos) {
+            this.file = file;
+            this.bytes = bytes;
+            this.forms = forms;
+            this.errors = errors;
+            this.nanos = nanos;
+        }
+
+        public int getForms() {
+            return forms;
+        }
+
+        public int getErrors() {
+            return errors;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(nanos, 1) / 1e9;
+            return String.format("Loaded %s: %d forms (%d errors), %d bytes in"
+                    + " %.1f ms, %.1f MB/s, %.0f forms/s", file, forms, errors,
+                    bytes, nanos / 1e6, bytes / seconds / 1e6, forms / seconds);
+        }
+    }
+}
+
+/**
+ * A read only CharSequence view of a byte buffer holding ASCII text.
+ * Used to run the TokenAnalyser over a mapped file without decoding it.
+ */
+class ByteCharSequence implements CharSequence {
+    private final MappedByteBuffer buffer;
+    private final int offset;
+    private final int length;
+
+    ByteCharSequence(MappedByteBuffer buffer) {
+        this(buffer, 0, buffer.limit());
+    }
+
+    private ByteCharSequence(MappedByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (buffer.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new ByteCharSequence(buffer, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length];
+        for(int i = 0; i < length; i++)
+            chars[i] = charAt(i);
+        return new String(chars);
+    }
+}
@@ -1,53 +1,174 @@
 /**
  * This class creates abstractions for creation and maintainance of symbol
  * tables.
- * The implementation is hashmap based, ie it is a mapping from the variable
- * name to the corresponding SExp object. If a new symbol is defined, then its
- * value is updated into the symbol table. If a symbol is accessed without
- * definition, then an exception is thrown.
- * Predefined symbols like CAR, CDR, QUOTE, DEFUN, CONST, COND etc are stored
- * in the symbol table as it is initialized first time.
+ * Every symbolic atom is interned, ie there is exactly one SExp object per
+ * symbol name, so symbols can be compared by reference. The table is an open
+ * addressing hash table probed directly with the characters of the name, so
+ * finding an existing symbol needs a single probe sequence and no temporary
+ * objects. Each symbol is given a small integer id in order of creation.
+ * Predefined symbols like NIL, T, QUOTE, COND and DEFUN are interned when the
+ * class is loaded and are available as constants.
+ * Small integer atoms are immutable too, so a range of them is preallocated
+ * and shared between the parser and the arithmetic primitives.
+ * The table is shared by every Interpreter and may be used from many threads.
+ * Finding a symbol which exists already takes no lock: the table is read
+ * through a volatile reference, and a probe which misses, because the symbol
+ * is new or was added while the probe ran, is repeated under the lock before
+ * the symbol is created. Symbols are added under the lock, and a table which
+ * grows is replaced as a whole, so readers never see it half copied.
  */
 
-import java.util.*;
+import java.math.BigInteger;
 
 public class SymbolTable {
-    
-    private static Map<String, SExp> symbolTableMap = null;
-    
-    
-    /**Constructor for the symbol table.
-     * It initializes the symbol table as a hashmap, mapping symbol strings
-     * to corresponding SExp object.
-     */
+
+    private static volatile Table table = new Table(256);
+    private static int symbolCount = 0; //Guarded by the class lock
+
+    //Open addressing table of symbols, with the hash of each symbol
+    private static final class Table {
+        final SExp[] symbols;
+        final int[] hashes;
+
+        Table(int size) {
+            symbols = new SExp[size];
+            hashes = new int[size];
+        }
+    }
+
+    //Integer atoms in [INT_CACHE_LOW, INT_CACHE_HIGH] are preallocated and
+    //shared. The range can be changed with the lisp.intcache.low and
+    //lisp.intcache.high system properties.
+    private static final int INT_CACHE_LOW =
+            Integer.getInteger("lisp.intcache.low", -128);
+    private static final int INT_CACHE_HIGH =
+            Integer.getInteger("lisp.intcache.high", 1024);
+    private static final SExp[] intCache = createIntCache();
+
+    public static final SExp NIL = getSExpForAtom("NIL");
+    public static final SExp T = getSExpForAtom("T");
+    public static final SExp QUOTE = getSExpForAtom("QUOTE");
+    public static final SExp COND = getSExpForAtom("COND");
+    public static final SExp DEFUN = getSExpForAtom("DEFUN");
+
     private SymbolTable() {}
-    
+
     /** Overloaded function getSExpressionForAtom.
      * Creates and returns new SExp object for an atom, if it is an integer or
      * a new symbolic atom. If it's a pre-existing symbol, then the corresponding
      * entry for the symbol is returned from the symbol table
-     * @param atom: int or String, representing the atom
-     * @return SExp: SExpression object corresponding to the atom 
+     * @param atom: long, BigInteger or String, representing the atom
+     * @return SExp: SExpression object corresponding to the atom
      */
-    public static SExp getSExpForAtom(int atom) {
+    public static SExp getSExpForAtom(long atom) {
+        if(atom >= INT_CACHE_LOW && atom <= INT_CACHE_HIGH)
+            return intCache[(int) (atom - INT_CACHE_LOW)];
+        return new SExp(atom);
+    }
+
+    public static SExp getSExpForAtom(BigInteger atom) {
+        if(atom.bitLength() < Long.SIZE)
+            return getSExpForAtom(atom.longValue());
         return new SExp(atom);
     }
-    
+
+    private static SExp[] createIntCache() {
+        SExp[] cache = new SExp[Math.max(0, INT_CACHE_HIGH - INT_CACHE_LOW + 1)];
+        for(int i = 0; i < cache.length; i++)
+            cache[i] = new SExp(INT_CACHE_LOW + i);
+        return cache;
+    }
+
+    public static SExp getSExpForAtom(String atom) {
+        return intern(atom, 0, atom.length());
+    }
+
     /**
-     *
-     * @param atom
-     * @return
+     * Returns the symbol whose name is the given range of characters,
+     * creating it if it does not exist yet.
+     * @param chars: characters holding the name
+     * @param start: index of the first character of the name
+     * @param end: index after the last character of the name
+     * @return SExp: the interned symbolic atom
      */
-    public static SExp getSExpForAtom(String atom) {
-        
-        if(symbolTableMap == null)
-            symbolTableMap = new HashMap<>();
-        
-        if(symbolTableMap.containsKey(atom))
-            return symbolTableMap.get(atom);
-        
-        SExp sExpression = new SExp(atom);
-        symbolTableMap.put(atom, sExpression);
-        return sExpression;
-    }
-}
\ No newline at end of file
+    public static SExp intern(CharSequence chars, int start, int end) {
+        int hash = hash(chars, start, end);
+        Table current = table;
+        int index = find(current, hash, chars, start, end);
+        SExp symbol = current.symbols[index];
+        if(symbol != null)
+            return symbol;
+        return add(hash, chars, start, end);
+    }
+
+    //Adds a symbol, unless another thread added it since the probe
+    private static synchronized SExp add(int hash, CharSequence chars,
+                                         int start, int end) {
+        Table current = table;
+        int index = find(current, hash, chars, start, end);
+        SExp symbol = current.symbols[index];
+        if(symbol != null)
+            return symbol;
+        symbol = new SExp(chars.subSequence(start, end).toString(), symbolCount++);
+        //The hash is stored first; a reader seeing the symbol with an old
+        //hash only misses it and retries here
+        current.hashes[index] = hash;
+        current.symbols[index] = symbol;
+        if(symbolCount * 2 > current.symbols.length)
+            table = resize(current);
+        return symbol;
+    }
+
+    /**
+     * @return the index of the symbol with the given name in the table, or
+     * of the empty entry ending its probe sequence
+     */
+    private static int find(Table current, int hash, CharSequence chars,
+                            int start, int end) {
+        int mask = current.symbols.length - 1;
+        int index = hash & mask;
+        SExp symbol;
+        while((symbol = current.symbols[index]) != null) {
+            if(current.hashes[index] == hash
+                    && nameEquals(symbol.getAtomAsString(), chars, start, end))
+                return index;
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int hash(CharSequence chars, int start, int end) {
+        int hash = 0;
+        for(int i = start; i < end; i++)
+            hash = 31 * hash + chars.charAt(i);
+        //Spread similar names such as F1, F2, F3 across the table, so that
+        //they do not form long runs for the linear probing
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean nameEquals(String name, CharSequence chars,
+                                      int start, int end) {
+        if(name.length() != end - start)
+            return false;
+        for(int i = 0; i < name.length(); i++)
+            if(name.charAt(i) != chars.charAt(start + i))
+                return false;
+        return true;
+    }
+
+    private static Table resize(Table current) {
+        Table resized = new Table(current.symbols.length * 2);
+        int mask = resized.symbols.length - 1;
+        for(int i = 0; i < current.symbols.length; i++) {
+            if(current.symbols[i] == null)
+                continue;
+            int index = current.hashes[i] & mask;
+            while(resized.symbols[index] != null)
+                index = (index + 1) & mask;
+            resized.symbols[index] = current.symbols[i];
+            resized.hashes[index] = current.hashes[i];
+        }
+        return resized;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Checks that tail calls run in constant stack space. Loops of a million
+ * iterations, written as self recursive and mutually recursive functions
+ * whose recursive calls are in tail position of a COND branch, are evaluated
+ * on a thread with a 256 KB stack, far too small for a million nested calls.
+ * Every result is checked and the time per iteration reported. The engine is
+ * the one selected with -Dlisp.engine.
+ * A last check, in an interpreter of its own, makes sure that a tail call
+ * keeps the frame of its caller when the callee defines a function which
+ * refers to the caller's variables.
+ * Run with: java TailCallStress [iterations]
+ * @author: Pravar Mahajan
+ */
+public class TailCallStress {
+
+    private static final String LIBRARY =
+            "(DEFUN COUNT (N ACC) (COND ((EQ N 0) ACC)"
+            + " (T (COUNT (MINUS N 1) (PLUS ACC 1)))))"
+            + " (DEFUN EVENP (N) (COND ((EQ N 0) T) (T (ODDP (MINUS N 1)))))"
+            + " (DEFUN ODDP (N) (COND ((EQ N 0) NIL) (T (EVENP (MINUS N 1)))))"
+            + " (DEFUN BUILD (N L) (COND ((EQ N 0) L)"
+            + " (T (BUILD (MINUS N 1) (CONS N L)))))"
+            + " (DEFUN LEN (L ACC) (COND ((NULL L) ACC)"
+            + " (T (LEN (CDR L) (PLUS ACC 1)))))";
+
+    //H defines K, which refers to the variable X of G, the caller of H
+    private static final String SCOPING =
+            "(DEFUN H (Y) (COND ((EQ (DEFUN K (Z) (PLUS X Z)) (QUOTE K)) (K Y))))"
+            + " (DEFUN G (X) (H 1))";
+
+    private static final long STACK_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        String[][] checks = {
+            {"(COUNT " + iterations + " 0)", String.valueOf(iterations)},
+            {"(EVENP " + iterations + ")", iterations % 2 == 0 ? "T" : "NIL"},
+            {"(LEN (BUILD " + iterations + " NIL) 0)", String.valueOf(iterations)}
+        };
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                Interpreter interpreter = new Interpreter();
+                interpreter.evaluate(LIBRARY);
+                for(String[] check : checks) {
+                    long startTime = System.nanoTime();
+                    String result = interpreter.evaluate(check[0]).getDottedNotation();
+                    long nanos = System.nanoTime() - startTime;
+                    if(!result.equals(check[1]))
+                        throw new IllegalStateException(check[0] + " returned "
+                                + result + " instead of " + check[1]);
+                    System.out.printf("%s: %s in %.0f ms, %.0f ns per iteration%n",
+                            check[0], result, nanos / 1e6,
+                            (double) nanos / iterations);
+                }
+                Interpreter scoping = new Interpreter();
+                scoping.evaluate(SCOPING);
+                String result = scoping.evaluate("(G 5)").getDottedNotation();
+                if(!result.equals("6"))
+                    throw new IllegalStateException("(G 5) returned " + result
+                            + " instead of 6");
+            }
+            catch(Throwable e) {
+                failure[0] = e;
+            }
+        }, "stress", STACK_SIZE);
+        thread.start();
+        thread.join();
+        if(failure[0] != null) {
+            System.out.println("FAILED: " + failure[0]);
+            System.exit(1);
+        }
+        System.out.println("Engine " + Evaluator.getEngine() + ": all loops ran in "
+                + STACK_SIZE / 1024 + " KB of stack");
+    }
+}
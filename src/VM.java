@@ -0,0 +1,245 @@
+import java.util.Arrays;
+
+/**
+ * This class is the virtual machine running the code produced by the
+ * BytecodeCompiler.
+ * Values are kept on one flat stack shared by all running functions. Calls
+ * between functions compiled to bytecode do not recurse in Java: the VM saves
+ * the code, program counter and stack base of the caller on its own call
+ * stack and continues with the callee, so even deep non tail recursion only
+ * grows heap allocated arrays. Bindings live in the A-list frames like with
+ * the other engines, so free variables are looked up dynamically as before.
+ * TAIL_CALL replaces the frame of the running function under the same rules
+ * as the tail calls made by eval.
+ * Functions without bytecode, defined while another engine was selected,
+ * and memoized functions are called through Evaluator.invoke. A tail call
+ * of such a function made by the function invoke called is handed back to
+ * the loop of invoke as Compiler.TAIL_CALL, so those chains also run in
+ * constant stack space.
+ * Every Interpreter has a VM of its own.
+ * @author: Pravar Mahajan
+ */
+class VM {
+
+    private SExp[] stack = new SExp[256];
+    private int sp = 0; //First free entry of the stack. Entries above
+                               //it are kept null, so values popped off the
+                               //stack can be collected
+
+    //Saved code, program counter and number of A-list frames of the callers
+    //of the running function
+    private Bytecode[] callerCode = new Bytecode[64];
+    private int[] callerPc = new int[64];
+    private int[] callerFrames = new int[64];
+    private int callDepth = 0;
+
+    private final Interpreter interpreter;
+
+    VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * Calls a function compiled to bytecode.
+     * @param function: the function, with non null bytecode
+     * @param args: evaluated arguments
+     */
+    SExp call(FunctionDef function, SExp args) throws EvaluationError {
+        interpreter.aList.pushFrame(function.getLayout(), args);
+        return run(function.getBytecode(), 1, true);
+    }
+
+    /**
+     * Runs a compiled top level expression.
+     */
+    SExp execute(Bytecode code) throws EvaluationError {
+        return run(code, 0, false);
+    }
+
+    /**
+     * Runs code until it returns.
+     * @param code: the code to run
+     * @param frames: number of A-list frames pushed for the code, which are
+     * popped when it returns
+     * @param invoked: true if the code is a function called by invoke, which
+     * continues tail calls returned as Compiler.TAIL_CALL
+     */
+    private SExp run(Bytecode code, int frames, boolean invoked)
+            throws EvaluationError {
+        int entryDepth = callDepth;
+        int entrySp = sp;
+        int pc = 0;
+        ensureStack(code.maxStack);
+        AList aList = interpreter.aList;
+        DList functions = interpreter.functions;
+        try {
+            while(true) {
+                int[] instructions = code.code;
+                switch(instructions[pc]) {
+                    case Bytecode.CONST:
+                        stack[sp++] = (SExp) code.pool[instructions[pc + 1]];
+                        pc += 2;
+                        break;
+                    case Bytecode.LOCAL:
+                        stack[sp++] = aList.getLocal(instructions[pc + 1]);
+                        pc += 2;
+                        break;
+                    case Bytecode.DYNAMIC: {
+                        SExp symbol = (SExp) code.pool[instructions[pc + 1]];
+                        SExp value = aList.getValue(symbol);
+                        if(value == null)
+                            throw new EvaluationError("unbound variable: "
+                                    + symbol.getAtomAsString());
+                        stack[sp++] = value;
+                        pc += 2;
+                        break;
+                    }
+                    case Bytecode.JUMP_IF_NIL: {
+                        SExp test = stack[--sp];
+                        stack[sp] = null;
+                        if(test.isNil())
+                            pc = instructions[pc + 1];
+                        else
+                            pc += 2;
+                        break;
+                    }
+                    case Bytecode.JUMP:
+                        pc = instructions[pc + 1];
+                        break;
+                    case Bytecode.UNARY:
+                        stack[sp - 1] = ((Builtin.Unary) code.pool[instructions[pc + 1]])
+                                .apply(stack[sp - 1]);
+                        pc += 2;
+                        break;
+                    case Bytecode.BINARY: {
+                        SExp op2 = stack[--sp];
+                        stack[sp] = null;
+                        stack[sp - 1] = ((Builtin.Binary) code.pool[instructions[pc + 1]])
+                                .apply(stack[sp - 1], op2, interpreter);
+                        pc += 2;
+                        break;
+                    }
+                    case Bytecode.PRIMITIVE: {
+                        Builtin builtin = (Builtin) code.pool[instructions[pc + 1]];
+                        SExp args = popList(instructions[pc + 2]);
+                        stack[sp++] = builtin.apply(args, interpreter);
+                        pc += 3;
+                        break;
+                    }
+                    case Bytecode.CALL:
+                    case Bytecode.TAIL_CALL: {
+                        boolean tail = instructions[pc] == Bytecode.TAIL_CALL;
+                        FunctionDef function = functions.getFunction(
+                                (SExp) code.pool[instructions[pc + 1]]);
+                        int argc = instructions[pc + 2];
+                        pc += 3;
+                        interpreter.checkCall();
+                        if(function.getBytecode() == null
+                                || interpreter.isMemoized(function)) {
+                            if(tail && invoked && callDepth == entryDepth
+                                    && functions.mayPopFrames()) {
+                                interpreter.pendingFunction = function;
+                                interpreter.pendingArgs = popList(argc);
+                                return Compiler.TAIL_CALL; //Frames popped below
+                            }
+                            //The call may grow the stack, so the result is
+                            //pushed after it. After a tail call the RETURN
+                            //that follows returns it.
+                            SExp result = Evaluator.invoke(interpreter, function,
+                                    popList(argc));
+                            stack[sp++] = result;
+                        }
+                        else {
+                            sp -= argc;
+                            if(tail) {
+                                if(frames > 0 && functions.mayPopFrames()) {
+                                    aList.popFrame();
+                                    frames--;
+                                }
+                            }
+                            else {
+                                if(callDepth == callerCode.length)
+                                    growCallStack();
+                                callerCode[callDepth] = code;
+                                callerPc[callDepth] = pc;
+                                callerFrames[callDepth] = frames;
+                                callDepth++;
+                                frames = 0;
+                            }
+                            aList.pushFrame(function.getLayout(), stack, sp, argc);
+                            Arrays.fill(stack, sp, sp + argc, null);
+                            frames++;
+                            code = function.getBytecode();
+                            pc = 0;
+                            ensureStack(code.maxStack);
+                        }
+                        break;
+                    }
+                    case Bytecode.RETURN: {
+                        SExp result = stack[--sp];
+                        stack[sp] = null;
+                        while(frames > 0) {
+                            aList.popFrame();
+                            frames--;
+                        }
+                        if(callDepth == entryDepth)
+                            return result;
+                        callDepth--;
+                        code = callerCode[callDepth];
+                        pc = callerPc[callDepth];
+                        frames = callerFrames[callDepth];
+                        callerCode[callDepth] = null;
+                        stack[sp++] = result;
+                        break;
+                    }
+                    case Bytecode.DEFUN:
+                        stack[sp++] = Evaluator.defun(interpreter,
+                                (SExp) code.pool[instructions[pc + 1]]);
+                        pc += 2;
+                        break;
+                    case Bytecode.FAIL:
+                        throw new EvaluationError((String) code.pool[instructions[pc + 1]]);
+                    default:
+                        throw new IllegalStateException("Bad opcode " + instructions[pc]);
+                }
+            }
+        }
+        finally {
+            //Reached with frames left when an error is raised or a tail call
+            //is handed back to invoke. Unwind everything this activation
+            //pushed.
+            while(frames-- > 0)
+                aList.popFrame();
+            while(callDepth > entryDepth) {
+                callDepth--;
+                for(int i = callerFrames[callDepth]; i > 0; i--)
+                    aList.popFrame();
+                callerCode[callDepth] = null;
+            }
+            Arrays.fill(stack, entrySp, sp, null);
+            sp = entrySp;
+        }
+    }
+
+    //Pops the top count values into a list, first argument first
+    private SExp popList(int count) {
+        SExp list = SymbolTable.NIL;
+        for(int i = 0; i < count; i++) {
+            list = new SExp(stack[--sp], list);
+            stack[sp] = null;
+        }
+        return list;
+    }
+
+    private void ensureStack(int needed) {
+        if(sp + needed > stack.length)
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + needed));
+    }
+
+    private void growCallStack() {
+        int size = callerCode.length * 2;
+        callerCode = Arrays.copyOf(callerCode, size);
+        callerPc = Arrays.copyOf(callerPc, size);
+        callerFrames = Arrays.copyOf(callerFrames, size);
+    }
+}
@@ -0,0 +1,77 @@
+(DEFUN FACT (N) (COND ((EQ N 0) 1) (T (TIMES N (FACT (MINUS N 1))))))
+(FACT 10)
+(DEFUN FIB (N) (COND ((LESS N 2) N) (T (PLUS (FIB (MINUS N 1)) (FIB (MINUS N 2))))))
+(FIB 15)
+(CONS 1 (QUOTE (2 3)))
+(CAR (QUOTE (A B)))
+(CDR (QUOTE (A B)))
+(ATOM 5)
+(NULL NIL)
+(INT (QUOTE A))
+(EQ (QUOTE A) (QUOTE A))
+(QUOTIENT 17 5)
+(REMAINDER 17 5)
+(GREATER 3 2)
+(DEFUN LEN (L) (COND ((NULL L) 0) (T (PLUS 1 (LEN (CDR L))))))
+(LEN (QUOTE (A B C D)))
+(DEFUN OUTER (X) (INNER 5))
+(DEFUN INNER (Y) (PLUS X Y))
+(OUTER 10)
+(CAR 5)
+(PLUS 1)
+(FOO 1)
+Z
+(A . B)
+(1 2 . 3)
+(PLUS 1 (QUOTE A))
+(DEFUN ADD (A B) (PLUS A B))
+(ADD 1 2 3)
+(ADD 1 2)
+(DEFUN FACT (N) 42)
+(FACT 3)
+(COND (NIL 1))
+(FACT 25)
+(DEFUN FACT (N) (COND ((EQ N 0) 1) (T (TIMES N (FACT (MINUS N 1))))))
+(FACT 30)
+(PLUS 9223372036854775807 1)
+(MINUS -9223372036854775808 1)
+(QUOTIENT -9223372036854775808 -1)
+(EQ 100000000000000000000 100000000000000000000)
+(LESS 100000000000000000000 5)
+(QUOTIENT (FACT 30) (FACT 29))
+(REMAINDER (FACT 30) 7)
+(QUOTIENT 5 0)
+123456789012345678901234567890
+(EQ 3000 3000)
+(DEFUN COUNT (N ACC) (COND ((EQ N 0) ACC) (T (COUNT (MINUS N 1) (PLUS ACC 1)))))
+(COUNT 100000 0)
+(DEFUN EVENP (N) (COND ((EQ N 0) T) (T (ODDP (MINUS N 1)))))
+(DEFUN ODDP (N) (COND ((EQ N 0) NIL) (T (EVENP (MINUS N 1)))))
+(EVENP 10001)
+(DEFUN APPEND (X Y) (COND ((NULL X) Y) (T (CONS (CAR X) (APPEND (CDR X) Y)))))
+(DEFUN REV (X) (COND ((NULL X) NIL) (T (APPEND (REV (CDR X)) (CONS (CAR X) NIL)))))
+(REV (QUOTE (1 2 3 4 5)))
+(APPEND (QUOTE (A B)) (QUOTE (C . D)))
+(DEFUN SQ (X) (TIMES X X))
+(PMAP (QUOTE SQ) (QUOTE (1 2 3 4 5 6 7 8)))
+(TOUCH (FUTURE (QUOTE FIB) 12))
+(TOUCH 7)
+(PMAP (QUOTE CAR) (QUOTE ((A . 1) (B . 2))))
+(PMAP (QUOTE CAR) (QUOTE (1 2)))
+(PMAP (QUOTE SQ) 5)
+(FUTURE 5)
+(PLUS (FIB 10) (FACT 5))
+(CONS (FIB 8) (CONS (LEN (QUOTE (A B))) NIL))
+(DEFUN MAKE (N) (COND ((EQ N 0) NIL) (T (CONS N (MAKE (MINUS N 1))))))
+(LEN (MAKE 500))
+(DEFUN SUM (L) (COND ((NULL L) 0) (T (PLUS (CAR L) (SUM (CDR L))))))
+(SUM (MAKE 100))
+(TIMES 4294967296 4294967296)
+(MINUS 0 -9223372036854775808)
+(COND ((GREATER 1 2) (QUOTE A)) ((LESS 1 2) (QUOTE B)))
+(QUOTE (A . (B . (C . NIL))))
+(DEFUN)
+(DEFUN BAD (X X) X)
+(BAD 1 2)
+(CDR NIL)
+(EQ (QUOTE (A)) (QUOTE (A)))